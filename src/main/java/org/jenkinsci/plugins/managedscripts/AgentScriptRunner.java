@@ -0,0 +1,265 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.CloseProofOutputStream;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamTaskListener;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Executes a list of scripts one after the other directly on the execution host.
+ * <p>
+ * All scripts are shipped with a single remote call and all exit codes come back with its result, instead of paying a transfer, a launch and a join round trip per script. Execution stops at
+ * the first script returning a non-zero exit code. As the processes are started by a local launcher on the execution host, launcher decorations of build wrappers don't apply.
+ * <p>
+ * An {@link OutputPolicy} given is applied to the output right there, before it is sent to the controller. The output can also be compressed on its way to the controller, in blocks flushed
+ * together with the output, which pays off for agents connected by slow links. Use {@link #execute(FilePath)} to run it, which makes sure all of the output arrived before returning.
+ */
+final class AgentScriptRunner extends MasterToSlaveFileCallable<List<AgentScriptRunner.Result>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(AgentScriptRunner.class.getName());
+
+    private final List<Invocation> invocations;
+    private final EnvVars env;
+    private final OutputStream out;
+    private final OutputPolicy outputPolicy;
+    private final boolean compress;
+    // the controller side of a compressed output
+    private transient Inflater inflater;
+    private transient InflaterOutputStream inflaterStream;
+
+    /**
+     * @param invocations the scripts to execute
+     * @param env         the environment to execute the scripts with
+     * @param out         the stream to send the output of the scripts to, usually the build log
+     */
+    AgentScriptRunner(List<Invocation> invocations, EnvVars env, OutputStream out) {
+        this(invocations, env, out, null, false);
+    }
+
+    /**
+     * @param invocations  the scripts to execute
+     * @param env          the environment to execute the scripts with
+     * @param out          the stream to send the output of the scripts to, usually the build log
+     * @param outputPolicy the limits to apply to the output or {@code null}
+     * @param compress     whether to compress the output sent to the controller
+     */
+    AgentScriptRunner(List<Invocation> invocations, EnvVars env, OutputStream out, OutputPolicy outputPolicy, boolean compress) {
+        this.invocations = new ArrayList<Invocation>(invocations);
+        this.env = env;
+        this.outputPolicy = outputPolicy;
+        this.compress = compress;
+        if (compress) {
+            inflater = new Inflater();
+            inflaterStream = new InflaterOutputStream(out, inflater);
+            this.out = new RemoteOutputStream(new CloseProofOutputStream(inflaterStream));
+        } else {
+            // the build log must outlive the remote stream
+            this.out = new RemoteOutputStream(new CloseProofOutputStream(out));
+        }
+    }
+
+    /**
+     * @return whether scripts can be executed by this class instead of the given launcher, i.e. it doesn't do more than starting processes on the execution host as they are. Launchers
+     * decorated e.g. by build wrappers have to start the processes themselves.
+     */
+    static boolean canReplace(Launcher launcher) {
+        return launcher.getClass() == Launcher.RemoteLauncher.class || launcher.getClass() == Launcher.LocalLauncher.class;
+    }
+
+    /**
+     * Executes the scripts and waits until all of their output arrived.
+     *
+     * @param dir the directory to execute the scripts in
+     * @return the outcome of each script executed
+     */
+    List<Result> execute(FilePath dir) throws IOException, InterruptedException {
+        boolean synced = false;
+        try {
+            List<Result> results = dir.act(this);
+            syncIO(dir.getChannel());
+            synced = true;
+            if (inflaterStream != null) {
+                inflaterStream.finish();
+                inflaterStream.flush();
+            }
+            return results;
+        } finally {
+            if (inflater != null) {
+                if (!synced) {
+                    // the scripts failed, output still on its way must not reach an ended inflater
+                    try {
+                        syncIO(dir.getChannel());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Failed to wait for the output of the scripts", e);
+                    }
+                }
+                inflater.end();
+            }
+        }
+    }
+
+    private static void syncIO(VirtualChannel channel) throws IOException, InterruptedException {
+        if (channel instanceof Channel) {
+            // the output is sent asynchronously, the result might overtake it
+            ((Channel) channel).syncIO();
+        }
+    }
+
+    @Override
+    public List<Result> invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+        FilePath workspace = new FilePath(ws);
+        Deflater deflater = null;
+        OutputStream remote = out;
+        if (compress) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            remote = new DeflaterOutputStream(out, deflater, OutputPolicy.BUFFER_SIZE, true);
+        }
+        // batches the output even without limits, compressing every single line is pointless. The batches are flushed by a timer, so quiet scripts don't hold back output.
+        OutputPolicy policy = outputPolicy == null && compress ? new OutputPolicy(0, 0) : outputPolicy;
+        OutputStream sink = policy == null ? remote : policy.wrap(remote, true);
+        PrintStream logger = new PrintStream(sink, true, Charset.defaultCharset().name());
+        Launcher launcher = new Launcher.LocalLauncher(new StreamTaskListener(logger, Charset.defaultCharset()));
+        List<Result> results = new ArrayList<Result>();
+        try {
+            for (Invocation invocation : invocations) {
+                logger.println("executing script '" + invocation.name + "'");
+                FilePath dir = null;
+                FilePath script;
+                if (invocation.libraries.isEmpty()) {
+                    script = workspace.createTextTempFile("build_step_template", invocation.extension, invocation.content, false);
+                } else {
+                    // the libraries are placed next to the script
+                    dir = workspace.createTempDir("build_step_template", "");
+                    script = dir.child("script" + invocation.extension);
+                    script.write(invocation.content, null);
+                    for (Map.Entry<String, String> library : invocation.libraries.entrySet()) {
+                        dir.child(ScriptConfig.LIBRARY_DIR).child(library.getKey()).write(library.getValue(), null);
+                    }
+                }
+                try {
+                    long start = System.nanoTime();
+                    // without a stream of its own stderr is redirected to stdout, so the policy limits both together and their lines don't interleave
+                    int r = launcher.launch().cmds(invocation.getCommandLine(script.getRemote())).envs(env).stdout(logger).pwd(workspace).join();
+                    results.add(new Result(r, System.nanoTime() - start));
+                    if (r != 0) {
+                        break;
+                    }
+                } finally {
+                    if (dir != null) {
+                        dir.deleteRecursive();
+                    } else {
+                        script.delete();
+                    }
+                }
+            }
+        } finally {
+            logger.flush();
+            if (sink != remote) {
+                // writes the retained tail, the remote stream itself stays open
+                sink.close();
+            }
+            if (deflater != null) {
+                ((DeflaterOutputStream) remote).finish();
+                deflater.end();
+                out.flush();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * A single script to execute.
+     */
+    static final class Invocation implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        final String content;
+        final String extension;
+        private final List<String> interpreter;
+        private final String scriptFormat;
+        private final List<String> args;
+        final Map<String, String> libraries;
+
+        /**
+         * @param name         the name of the script, for logging
+         * @param content      the content of the script
+         * @param extension    the extension of the file the script gets written to
+         * @param interpreter  the command line preceding the script
+         * @param scriptFormat the format of the command line element referencing the script, {@code %s} being replaced by the path of the script
+         * @param args         the arguments following the script
+         */
+        Invocation(String name, String content, String extension, List<String> interpreter, String scriptFormat, List<String> args) {
+            this(name, content, extension, interpreter, scriptFormat, args, Collections.<String, String>emptyMap());
+        }
+
+        /**
+         * @param name         the name of the script, for logging
+         * @param content      the content of the script
+         * @param extension    the extension of the file the script gets written to
+         * @param interpreter  the command line preceding the script
+         * @param scriptFormat the format of the command line element referencing the script, {@code %s} being replaced by the path of the script
+         * @param args         the arguments following the script
+         * @param libraries    the content of the libraries to place in {@link ScriptConfig#LIBRARY_DIR} next to the script, by file name
+         */
+        Invocation(String name, String content, String extension, List<String> interpreter, String scriptFormat, List<String> args, Map<String, String> libraries) {
+            this.name = name;
+            this.content = content;
+            this.extension = extension;
+            this.interpreter = new ArrayList<String>(interpreter);
+            this.scriptFormat = scriptFormat;
+            this.args = new ArrayList<String>(args);
+            this.libraries = new LinkedHashMap<String, String>(libraries);
+        }
+
+        List<String> getCommandLine(String scriptPath) {
+            List<String> cmd = new ArrayList<String>(interpreter.size() + 1 + args.size());
+            cmd.addAll(interpreter);
+            cmd.add(String.format(scriptFormat, scriptPath));
+            cmd.addAll(args);
+            return Collections.unmodifiableList(cmd);
+        }
+    }
+
+    /**
+     * The outcome of a single script.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int exitCode;
+        final long durationNanos;
+
+        Result(int exitCode, long durationNanos) {
+            this.exitCode = exitCode;
+            this.durationNanos = durationNanos;
+        }
+    }
+}
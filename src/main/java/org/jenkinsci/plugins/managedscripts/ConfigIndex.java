@@ -0,0 +1,230 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the configs referenced by the build steps, by id and per {@link ItemGroup} they got resolved in.
+ * <p>
+ * Resolving a config with {@link ConfigFiles#getByIdOrNull(ItemGroup, String)} walks up the folder hierarchy for every single lookup. The index remembers the result per context, so repeated
+ * lookups (every build, every form validation) are a plain map access. The same applies to the configs offered by the dropdowns of the build steps, which are remembered pre-sorted per
+ * context and provider. As a config can be defined on any level of the hierarchy, the whole index gets dropped whenever one of the stores (the global config files, the configs of a folder
+ * or one of the providers) is saved.
+ */
+public final class ConfigIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigIndex.class.getName());
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, Config>> INDEX = new ConcurrentHashMap<String, ConcurrentMap<String, Config>>();
+
+    // sorted configs per context and provider, keyed by "<provider class>:<context full name>"
+    private static final ConcurrentMap<String, List<Config>> CONFIGS_IN_CONTEXT = new ConcurrentHashMap<String, List<Config>>();
+
+    // the version of each config visible within a folder when it got saved the last time, by config id and full name of the folder
+    private static final ConcurrentMap<String, Map<String, String>> FOLDER_CONFIGS = new ConcurrentHashMap<String, Map<String, String>>();
+
+    private static final Comparator<Config> BY_NAME = new Comparator<Config>() {
+        public int compare(Config o1, Config o2) {
+            return o1.name.compareTo(o2.name);
+        }
+    };
+
+    private ConfigIndex() {
+    }
+
+    /**
+     * @param build the build to resolve the config for
+     * @param id    the id of the config
+     * @param type  the expected type of the config
+     * @return the config visible to the given build or {@code null} if there is no such config of the expected type
+     */
+    @CheckForNull
+    public static <T extends Config> T get(@NonNull Run<?, ?> build, @CheckForNull String id, @NonNull Class<T> type) {
+        return get(build.getParent(), id, type);
+    }
+
+    /**
+     * @param item the item to resolve the config for
+     * @param id   the id of the config
+     * @param type the expected type of the config
+     * @return the config visible to the given item or {@code null} if there is no such config of the expected type
+     */
+    @CheckForNull
+    public static <T extends Config> T get(@CheckForNull Item item, @CheckForNull String id, @NonNull Class<T> type) {
+        if (item == null) {
+            return null;
+        }
+        return get(item instanceof ItemGroup ? (ItemGroup<?>) item : item.getParent(), id, type);
+    }
+
+    /**
+     * @param context the context to resolve the config in
+     * @param id      the id of the config
+     * @param type    the expected type of the config
+     * @return the config visible within the given context or {@code null} if there is no such config of the expected type
+     */
+    @CheckForNull
+    public static <T extends Config> T get(@CheckForNull ItemGroup<?> context, @CheckForNull String id, @NonNull Class<T> type) {
+        if (context == null || id == null) {
+            return null;
+        }
+        ConcurrentMap<String, Config> configs = INDEX.get(context.getFullName());
+        if (configs == null) {
+            ConcurrentMap<String, Config> created = new ConcurrentHashMap<String, Config>();
+            configs = INDEX.putIfAbsent(context.getFullName(), created);
+            if (configs == null) {
+                configs = created;
+            }
+        }
+        Config config = configs.get(id);
+        if (config == null) {
+            config = ConfigFiles.getByIdOrNull(context, id);
+            if (config == null) {
+                // not remembered, the id might just not be created yet
+                return null;
+            }
+            configs.put(id, config);
+        }
+        return type.isInstance(config) ? type.cast(config) : null;
+    }
+
+    /**
+     * @param context  the context to list the configs for
+     * @param provider the provider of the configs
+     * @return the configs of the given provider visible within the given context, sorted by name
+     */
+    @NonNull
+    public static List<Config> getConfigsInContext(@CheckForNull final ItemGroup<?> context, @NonNull final Class<? extends Descriptor> provider) {
+        String key = provider.getName() + ':' + (context == null ? "" : context.getFullName());
+        List<Config> configs = CONFIGS_IN_CONTEXT.get(key);
+        if (configs == null) {
+            // computed while holding the entry, so an invalidation in the meantime can't be overwritten by a stale list
+            configs = CONFIGS_IN_CONTEXT.computeIfAbsent(key, new Function<String, List<Config>>() {
+                @Override
+                public List<Config> apply(String k) {
+                    List<Config> sorted = new ArrayList<Config>(ConfigFiles.<Config>getConfigsInContext(context, provider));
+                    Collections.sort(sorted, BY_NAME);
+                    return Collections.unmodifiableList(sorted);
+                }
+            });
+        }
+        return configs;
+    }
+
+    /**
+     * @param context  the context to list the configs for
+     * @param provider the provider of the configs
+     * @return the items of a dropdown selecting one of the configs of the given provider visible within the given context
+     */
+    @NonNull
+    public static ListBoxModel getItems(@CheckForNull ItemGroup<?> context, @NonNull Class<? extends Descriptor> provider) {
+        List<Config> configs = getConfigsInContext(context, provider);
+        ListBoxModel items = new ListBoxModel(configs.size() + 1);
+        items.add("please select", "");
+        for (Config config : configs) {
+            items.add(config.name, config.id);
+        }
+        return items;
+    }
+
+    /**
+     * Drops all remembered lookups.
+     */
+    public static void invalidate() {
+        INDEX.clear();
+        CONFIGS_IN_CONTEXT.clear();
+        DetailLinkDescription.invalidate();
+        LOGGER.log(Level.FINE, "Invalidated config index");
+    }
+
+    /**
+     * @return whether the configs visible within the given folder are not the ones seen when it got saved the last time, compared by id and version
+     */
+    static boolean folderConfigsChanged(ItemGroup<?> folder) {
+        Map<String, String> versions = new HashMap<String, String>();
+        for (ConfigProvider provider : ConfigProvider.all()) {
+            for (Config config : ConfigFiles.<Config>getConfigsInContext(folder, provider.getClass())) {
+                versions.put(config.id, getVersion(config));
+            }
+        }
+        Map<String, String> previous = FOLDER_CONFIGS.put(folder.getFullName(), versions);
+        // on the first save since startup there is nothing to compare with
+        return !versions.equals(previous);
+    }
+
+    /**
+     * @return the digest of all fields of the config as stored
+     */
+    @NonNull
+    static String getVersion(@NonNull Config config) {
+        return Util.getDigestOf(Jenkins.XSTREAM2.toXML(config));
+    }
+
+    /**
+     * Invalidates the index whenever a store of configs got saved. Folders are saved for many other reasons (e.g. multibranch projects on every branch indexing), so they only invalidate
+     * the index if the configs visible within them changed. Any item group is considered a folder, as only config-file-provider knows which of them can store configs. The metrics
+     * of deleted configs are dropped along.
+     */
+    @Extension
+    public static final class SaveListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof GlobalConfigFiles || o instanceof ConfigProvider || o instanceof Item && o instanceof ItemGroup && folderConfigsChanged((ItemGroup<?>) o)) {
+                invalidate();
+                // a config might have been deleted
+                ScriptMetrics.pruneLater();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the index whenever a folder got moved or deleted, as this changes the configs visible to its children.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof ItemGroup) {
+                FOLDER_CONFIGS.remove(item.getFullName());
+                invalidate();
+                ScriptMetrics.pruneLater();
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof ItemGroup) {
+                FOLDER_CONFIGS.remove(oldFullName);
+                invalidate();
+            }
+        }
+    }
+}
@@ -2,17 +2,77 @@ package org.jenkinsci.plugins.managedscripts;
 
 import hudson.model.Item;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.plugins.configfiles.utils.DescriptionResponse;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The description shown below the script dropdown of a build step, linking to the selected script.
+ * <p>
+ * Form validation requests the description whenever the dropdown is touched, so descriptions are remembered per context and config as long as the config doesn't change. Only the
+ * descriptions used most recently are remembered, see {@link #MAX_DESCRIPTIONS}.
+ */
 public class DetailLinkDescription extends DescriptionResponse {
-    private DetailLinkDescription(String linkHtml) {
+
+    /**
+     * the maximum number of descriptions to remember, the least recently used ones are dropped first
+     */
+    static int MAX_DESCRIPTIONS = SystemProperties.getInteger(DetailLinkDescription.class.getName() + ".maxDescriptions", 1000);
+
+    // rendered descriptions by context path, context url and config id, in access order, guarded by itself
+    private static final Map<String, DetailLinkDescription> DESCRIPTIONS = new LinkedHashMap<String, DetailLinkDescription>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DetailLinkDescription> eldest) {
+            return size() > MAX_DESCRIPTIONS;
+        }
+    };
+
+    private final Config config;
+
+    private DetailLinkDescription(String linkHtml, Config config) {
         super(linkHtml);
+        this.config = config;
     }
 
     public static DetailLinkDescription getDescription(StaplerRequest req, Item context, String fileId, String argumentDetails) {
-        return new DetailLinkDescription(getDetailsLink(req, context, fileId, argumentDetails));
+        return new DetailLinkDescription(getDetailsLink(req, context, fileId, argumentDetails), null);
+    }
+
+    /**
+     * @param req             the current request
+     * @param context         the item the build step is configured in
+     * @param config          the selected config
+     * @param argumentDetails the description of the arguments of the config
+     * @return the description of the given config, rendered only once per context and version of the config
+     */
+    public static DetailLinkDescription getDescription(StaplerRequest req, Item context, Config config, String argumentDetails) {
+        String key = req.getContextPath() + '/' + context.getUrl() + '\n' + config.id;
+        DetailLinkDescription description;
+        synchronized (DESCRIPTIONS) {
+            description = DESCRIPTIONS.get(key);
+        }
+        // a saved config is a new instance
+        if (description == null || description.config != config) {
+            description = new DetailLinkDescription(getDetailsLink(req, context, config.id, argumentDetails), config);
+            synchronized (DESCRIPTIONS) {
+                DESCRIPTIONS.put(key, description);
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Drops all remembered descriptions.
+     */
+    static void invalidate() {
+        synchronized (DESCRIPTIONS) {
+            DESCRIPTIONS.clear();
+        }
     }
 
     private static String getDetailsLink(StaplerRequest req, Item context, String fileId, String argumentDetails) {
@@ -0,0 +1,340 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.ItemGroup;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.durable_task.ShellStep;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline step executing a managed script asynchronously, e.g. {@code durableManagedScript buildStepId: 'my-script', args: ['foo']}.
+ * <p>
+ * In contrast to {@link ScriptBuildStep} no executor thread waits for the script: the script is launched the same way as by the {@code sh} step (see {@link ShellStep}), the controller only
+ * polls for its completion and the script keeps running while the controller restarts. The managed script is embedded as here-document into a small wrapper script, which {@code exec}s the
+ * interpreter, so there is a single process on the agent. The wrapper, including the managed script, is written to the control directory of the durable task for every execution though, the
+ * {@link ScriptCache} is not used. As the interpreter reads the script from its standard input, the script itself can't read from standard input. Scripts with libraries (see
+ * {@link ScriptConfig#getLibraryIds()}) are written to a private temporary directory by the wrapper instead, along with their libraries, and executed from there by a child process of the
+ * wrapper, which removes the directory afterwards. As this relies on a Bourne shell, the step can't be used on Windows agents.
+ * <p>
+ * The execution is recorded in the {@link ScriptMetrics} of the script and as use for prewarming (see {@link ScriptCache#recordUse}), like the other build steps do. The {@code sh} step is
+ * asked to return the exit code instead of failing, so the metrics get the exit code as result of the step, the step fails on a non-zero exit code itself.
+ * <p>
+ * Arguments are passed as given, pipeline scripts interpolate them with Groovy already.
+ */
+public class DurableManagedScriptStep extends Step {
+
+    private final String buildStepId;
+    private List<String> args = Collections.emptyList();
+    private boolean tokenized;
+
+    @DataBoundConstructor
+    public DurableManagedScriptStep(String buildStepId) {
+        this.buildStepId = buildStepId;
+    }
+
+    public String getBuildStepId() {
+        return buildStepId;
+    }
+
+    public List<String> getArgs() {
+        return Collections.unmodifiableList(args);
+    }
+
+    @DataBoundSetter
+    public void setArgs(List<String> args) {
+        this.args = args == null ? Collections.<String>emptyList() : new ArrayList<String>(args);
+    }
+
+    public boolean isTokenized() {
+        return tokenized;
+    }
+
+    /**
+     * @param tokenized whether to split each argument into multiple arguments at whitespaces
+     */
+    @DataBoundSetter
+    public void setTokenized(boolean tokenized) {
+        this.tokenized = tokenized;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        Run<?, ?> build = context.get(Run.class);
+        FilePath workspace = context.get(FilePath.class);
+        long start = System.nanoTime();
+        Config config = ConfigIndex.get(build, buildStepId, Config.class);
+        if (config == null) {
+            throw new AbortException(Messages.config_does_not_exist(buildStepId));
+        }
+        ScriptMetrics.get(buildStepId).lookup.recordSince(start);
+        ScriptCache.recordUse(build.getParent().getParent(), buildStepId);
+        Map<String, String> libraries = ScriptBuildStep.getLibraries(build, config);
+
+        ArgumentListBuilder interpreter = new ArgumentListBuilder();
+        ScriptBuildStep.addInterpreter(interpreter, config, workspace.getChannel());
+        ArgumentListBuilder scriptArgs = new ArgumentListBuilder();
+        for (String arg : args) {
+            if (tokenized) {
+                scriptArgs.addTokenized(arg);
+            } else {
+                scriptArgs.add(arg);
+            }
+        }
+
+        ShellStep shell = new ShellStep(wrapperScript(config.content, libraries, interpreter.toList(), scriptArgs.toList()));
+        shell.setLabel("managed script '" + config.name + "'");
+        shell.setReturnStatus(true);
+        return new Execution(context, shell, buildStepId, config.name);
+    }
+
+    /**
+     * @return a shell script replacing itself by the interpreter, reading the managed script from a here-document. If the script has libraries, the script writes it and its libraries
+     * to a temporary directory and executes it from there instead.
+     */
+    static String wrapperScript(String content, Map<String, String> libraries, List<String> interpreter, List<String> args) {
+        StringBuilder sb = new StringBuilder(content.length() + 256);
+        sb.append("#!/bin/sh\n");
+        if (libraries.isEmpty()) {
+            sb.append("exec");
+            appendCommand(sb, interpreter, ScriptBuildStep.STDIN, args);
+            appendHereDocument(sb, content);
+            return sb.toString();
+        }
+        // the libraries are found next to the script, which therefore has to be a file
+        sb.append("dir=$(mktemp -d) || exit 1\n");
+        sb.append("trap 'rm -rf \"$dir\"' EXIT\n");
+        sb.append("trap 'exit 143' HUP INT TERM\n");
+        sb.append("mkdir \"$dir/").append(ScriptConfig.LIBRARY_DIR).append("\" || exit 1\n");
+        sb.append("cat > \"$dir/script.sh\"");
+        appendHereDocument(sb, content);
+        for (Map.Entry<String, String> library : libraries.entrySet()) {
+            sb.append("cat > \"$dir/").append(ScriptConfig.LIBRARY_DIR).append('/').append(library.getKey()).append('"');
+            appendHereDocument(sb, library.getValue());
+        }
+        // not exec'ed, the trap removes the directory when the script is done
+        appendCommand(sb, interpreter, null, args);
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Appends the command line executing the script, from the given file or from {@code "$dir/script.sh"} if {@code null}.
+     */
+    private static void appendCommand(StringBuilder sb, List<String> interpreter, String script, List<String> args) {
+        boolean first = sb.length() == 0 || sb.charAt(sb.length() - 1) == '\n';
+        for (String element : interpreter) {
+            sb.append(first ? "" : " ").append(quote(element));
+            first = false;
+        }
+        sb.append(first ? "" : " ").append(script == null ? "\"$dir/script.sh\"" : quote(script));
+        for (String arg : args) {
+            sb.append(' ').append(quote(arg));
+        }
+    }
+
+    private static void appendHereDocument(StringBuilder sb, String content) {
+        // the hash of the content can't be part of the content itself
+        String delimiter = "MANAGED_SCRIPT_" + ScriptCache.hash(content);
+        sb.append(" <<'").append(delimiter).append("'\n");
+        sb.append(content);
+        if (!content.endsWith("\n")) {
+            sb.append('\n');
+        }
+        sb.append(delimiter).append('\n');
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Executes the {@code sh} step and records the duration and the exit code of the script when it completes. It is persisted along with the {@code sh} step, so this also works after a
+     * restart of the controller.
+     */
+    static final class Execution extends StepExecution {
+        private static final long serialVersionUID = 1L;
+
+        // only needed to start it
+        private final transient ShellStep shell;
+        private final String buildStepId;
+        private final String name;
+        // wall-clock time, as the execution might be resumed by another JVM
+        private long started;
+        private StepExecution shellExecution;
+
+        Execution(StepContext context, ShellStep shell, String buildStepId, String name) {
+            super(context);
+            this.shell = shell;
+            this.buildStepId = buildStepId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            long start = System.nanoTime();
+            started = System.currentTimeMillis();
+            shellExecution = shell.start(new ShellContext(this));
+            boolean done = shellExecution.start();
+            ScriptMetrics.get(buildStepId).launch.recordSince(start);
+            return done;
+        }
+
+        @Override
+        public void stop(@NonNull Throwable cause) throws Exception {
+            if (shellExecution != null) {
+                shellExecution.stop(cause);
+            } else {
+                getContext().onFailure(cause);
+            }
+        }
+
+        @Override
+        public void onResume() {
+            if (shellExecution != null) {
+                shellExecution.onResume();
+            }
+        }
+
+        @Override
+        public String getStatus() {
+            return shellExecution == null ? null : shellExecution.getStatus();
+        }
+
+        /**
+         * @param result the exit code of the script
+         */
+        void completed(Object result) {
+            int exitCode = result instanceof Integer ? (Integer) result : 0;
+            ScriptMetrics metrics = ScriptMetrics.get(buildStepId);
+            metrics.run.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - started)));
+            metrics.recordExitCode(exitCode);
+            if (exitCode == 0) {
+                getContext().onSuccess(null);
+            } else {
+                getContext().onFailure(new AbortException(Messages.durable_buildstep_failed(name, exitCode)));
+            }
+        }
+    }
+
+    /**
+     * The context of the {@code sh} step, passes its outcome to the {@link Execution} and everything else to the context of this step.
+     */
+    private static final class ShellContext extends StepContext {
+        private static final long serialVersionUID = 1L;
+
+        private final Execution execution;
+
+        ShellContext(Execution execution) {
+            this.execution = execution;
+        }
+
+        private StepContext delegate() {
+            return execution.getContext();
+        }
+
+        @Override
+        public void onSuccess(Object result) {
+            execution.completed(result);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            // e.g. the agent got lost, the script didn't complete
+            delegate().onFailure(t);
+        }
+
+        @Override
+        public <T> T get(Class<T> key) throws IOException, InterruptedException {
+            return delegate().get(key);
+        }
+
+        @Override
+        @Deprecated
+        public void setResult(Result r) {
+            delegate().setResult(r);
+        }
+
+        @Override
+        public BodyInvoker newBodyInvoker() throws IllegalStateException {
+            return delegate().newBodyInvoker();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate().isReady();
+        }
+
+        @Override
+        public ListenableFuture<Void> saveState() {
+            return delegate().saveState();
+        }
+
+        @Override
+        public boolean hasBody() {
+            return delegate().hasBody();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ShellContext && delegate().equals(((ShellContext) o).delegate());
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate().hashCode();
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "durableManagedScript";
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return Messages.durable_buildstep_name();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.asList(Run.class, FilePath.class, Launcher.class, TaskListener.class, EnvVars.class)));
+        }
+
+        public ListBoxModel doFillBuildStepIdItems(@AncestorInPath ItemGroup context) {
+            return Jenkins.get().getDescriptorByType(ScriptBuildStep.DescriptorImpl.class).doFillBuildStepIdItems(context);
+        }
+    }
+}
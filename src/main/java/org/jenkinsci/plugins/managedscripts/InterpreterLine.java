@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The interpreter a script is executed with, as given by its hash-bang line.
+ * <p>
+ * Instances are immutable, {@link ScriptConfig} parses its content only once and every build executing the script reuses the result.
+ */
+public final class InterpreterLine {
+
+    private final List<String> command;
+
+    private InterpreterLine(List<String> command) {
+        this.command = Collections.unmodifiableList(command);
+    }
+
+    /**
+     * Parses the hash-bang line of a script.
+     * <p>
+     * The line may end with CRLF and the script may consist of the hash-bang line only. For {@code #!/usr/bin/env -S ...} the remainder of the line is split into separate arguments (honoring
+     * quotes) the same way {@code env -S} would do it, so it also works with versions of {@code env} not supporting {@code -S}.
+     *
+     * @param content the content of the script
+     * @return the interpreter or {@code null} if the script does not start with a hash-bang
+     */
+    @CheckForNull
+    public static InterpreterLine parse(@NonNull String content) {
+        if (!content.startsWith("#!")) {
+            return null;
+        }
+        int end = content.indexOf('\n');
+        // trimming also removes the CR of a CRLF line ending
+        String line = content.substring(2, end < 0 ? content.length() : end).trim();
+        if (line.isEmpty()) {
+            return null;
+        }
+        String[] elements = line.split("\\s+");
+        List<String> command = new ArrayList<String>();
+        command.add(elements[0]);
+        if (isEnv(elements[0]) && elements.length > 1 && elements[1].startsWith("-S")) {
+            String splitString = line.substring(line.indexOf("-S", elements[0].length()) + 2);
+            command.addAll(Arrays.asList(Util.tokenize(splitString)));
+        } else {
+            command.addAll(Arrays.asList(elements).subList(1, elements.length));
+        }
+        return new InterpreterLine(command);
+    }
+
+    private static boolean isEnv(String interpreter) {
+        return interpreter.equals("env") || interpreter.endsWith("/env");
+    }
+
+    /**
+     * @return the interpreter executable
+     */
+    @NonNull
+    public String getExecutable() {
+        return command.get(0);
+    }
+
+    /**
+     * @return the interpreter executable followed by its arguments
+     */
+    @NonNull
+    public List<String> getCommand() {
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return Util.join(command, " ");
+    }
+}
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Items;
+import jenkins.model.Jenkins;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Common base of the managed script configs, holding the names of the arguments a script expects.
+ * <p>
+ * The names are kept as a plain array of interned strings, there are no per-argument objects in memory. {@link Arg}s only exist to bind the form and to read configs saved by former versions,
+ * which are converted when they are loaded. The public {@link #args} field of former versions is still filled for binary compatibility, but not saved anymore.
+ */
+public abstract class ManagedScriptConfig extends Config {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] NO_ARGS = new String[0];
+
+    // null if the config doesn't define any arguments
+    private String[] argNames;
+
+    /**
+     * @deprecated use {@link #getArgNames()} or {@link #getArgs()}, only kept for code compiled against former versions
+     */
+    @Deprecated
+    public transient List<Arg> args;
+
+    // the arguments of configs saved by former versions, read from their "args" element and replaced by argNames when loaded
+    private List<? extends Arg> legacyArgs;
+
+    static {
+        // configs are stored globally and in folders
+        Jenkins.XSTREAM.aliasField("args", ManagedScriptConfig.class, "legacyArgs");
+        Items.XSTREAM.aliasField("args", ManagedScriptConfig.class, "legacyArgs");
+    }
+
+    protected ManagedScriptConfig(String id, String name, String comment, String content, List<? extends Arg> args) {
+        super(id, name, comment, content);
+        this.argNames = toArgNames(args);
+        this.args = getArgs();
+    }
+
+    private static String[] toArgNames(List<? extends Arg> args) {
+        if (args == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<String>(args.size());
+        for (Arg arg : args) {
+            if (arg != null && arg.name != null && arg.name.trim().length() > 0) {
+                names.add(arg.name.intern());
+            }
+        }
+        return names.isEmpty() ? NO_ARGS : names.toArray(new String[names.size()]);
+    }
+
+    protected Object readResolve() {
+        if (legacyArgs != null) {
+            argNames = toArgNames(legacyArgs);
+            legacyArgs = null;
+        } else if (argNames != null) {
+            for (int i = 0; i < argNames.length; i++) {
+                argNames[i] = argNames[i].intern();
+            }
+        }
+        args = getArgs();
+        return this;
+    }
+
+    /**
+     * @return the names of the arguments the script expects, in order
+     */
+    @NonNull
+    public List<String> getArgNames() {
+        return argNames == null ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(argNames));
+    }
+
+    /**
+     * @return the arguments the script expects or {@code null} if the config doesn't define any, as required by the form
+     */
+    @CheckForNull
+    public List<Arg> getArgs() {
+        if (argNames == null) {
+            return null;
+        }
+        List<Arg> result = new ArrayList<Arg>(argNames.length);
+        for (String argName : argNames) {
+            result.add(newArg(argName));
+        }
+        return result;
+    }
+
+    /**
+     * @param name the name of the argument
+     * @return the argument of the type the config binds its form to
+     */
+    protected abstract Arg newArg(String name);
+
+    /**
+     * @return the argument description to be displayed on the screen when selecting a config in the dropdown
+     */
+    @NonNull
+    public String getArgsDescription() {
+        if (argNames == null || argNames.length == 0) {
+            return "No arguments required";
+        }
+        StringBuilder sb = new StringBuilder("Required arguments: ");
+        for (int i = 0; i < argNames.length; i++) {
+            if (i > 0) {
+                sb.append(" | ");
+            }
+            sb.append(i + 1).append(". ").append(argNames[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param content the content of a script
+     * @return the content with all line endings being CRLF, as expected by Windows interpreters
+     */
+    static String withCrLf(String content) {
+        if (content == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(content.length() + content.length() / 32 + 16);
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c == '\n' && (i == 0 || content.charAt(i - 1) != '\r')) {
+                sb.append('\r');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An argument expected by a script.
+     */
+    public static class Arg implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String name;
+
+        @DataBoundConstructor
+        public Arg(final String name) {
+            this.name = name;
+        }
+    }
+}
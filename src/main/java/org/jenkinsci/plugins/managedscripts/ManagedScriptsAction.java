@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes runtime information about the managed scripts below {@code /managed-scripts/}.
+ */
+@Extension
+public class ManagedScriptsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.action_name();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "managed-scripts";
+    }
+
+    /**
+     * Serves the {@link ScriptUsageIndex}, the jobs referencing each script, as page and via the remote API below {@code /managed-scripts/usages/}.
+     */
+    public ScriptUsageIndex.Usages getUsages() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        return new ScriptUsageIndex.Usages();
+    }
+
+    /**
+     * Serves the {@link ScriptMetrics} of all scripts executed since startup, the scripts with the highest total run time first, and the hit/miss counters of the {@link ScriptCache}.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        List<ScriptMetrics> metrics = new ArrayList<ScriptMetrics>(ScriptMetrics.all().values());
+        Collections.sort(metrics, new Comparator<ScriptMetrics>() {
+            public int compare(ScriptMetrics o1, ScriptMetrics o2) {
+                return Long.compare(o2.getRunTotalMillis(), o1.getRunTotalMillis());
+            }
+        });
+        long total = 0;
+        for (ScriptMetrics m : metrics) {
+            total += m.getRunTotalMillis();
+        }
+        JSONObject scripts = new JSONObject();
+        for (ScriptMetrics m : metrics) {
+            JSONObject json = m.toJSON();
+            json.put("runTimeShare", total == 0 ? 0 : (double) m.getRunTotalMillis() / total);
+            scripts.put(m.getConfigId(), json);
+        }
+
+        JSONObject cache = new JSONObject();
+        for (Map.Entry<String, ScriptCache.Statistics> entry : ScriptCache.getStatistics().entrySet()) {
+            JSONObject json = new JSONObject();
+            json.put("hits", entry.getValue().getHits());
+            json.put("misses", entry.getValue().getMisses());
+            json.put("deltas", entry.getValue().getDeltas());
+            cache.put(entry.getKey().isEmpty() ? "(built-in)" : entry.getKey(), json);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("scripts", scripts);
+        result.put("cache", cache);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString(2));
+    }
+}
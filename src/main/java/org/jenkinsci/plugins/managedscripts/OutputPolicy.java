@@ -0,0 +1,273 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the output of a script on its way to the build log.
+ * <p>
+ * The output is buffered and forwarded in batches: flushes of the script output are only passed on every {@link #FLUSH_INTERVAL_MILLIS}, so a script printing line by line no longer causes a
+ * remote call per line. Output held back is flushed by a timer at the end of the interval, so it doesn't stall when the script goes quiet. If a maximum size is given, only the first and the
+ * last half of it are kept, the omitted part in between is replaced by a marker line. The size is capped at {@link #MAX_BYTES}, the buffer for the last half is only allocated once the first
+ * half got written. If a maximum rate is given, writing is slowed down to it, which in turn slows down the script once its pipe is full. Closing the stream is slowed down for at most
+ * {@link #CLOSE_TIMEOUT_MILLIS}, the rest of the retained output is written at full speed then.
+ * <p>
+ * The policy is applied on the execution host where possible (see {@link AgentScriptRunner}), so omitted output never crosses the channel. Otherwise, e.g. for decorated launchers, it is
+ * applied on the controller, and the buffer for the last half is held in the heap of the controller until the script finished.
+ */
+final class OutputPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(OutputPolicy.class.getName());
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+    static final long MAX_BYTES = 64L * 1024 * 1024;
+    // not final for tests
+    static long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    // shared by all streams of the JVM, controller or agent
+    private static ScheduledExecutorService flusher;
+
+    private final long maxBytes;
+    private final long maxBytesPerSecond;
+
+    /**
+     * @param maxBytes          the maximum number of bytes to keep, {@code 0} for no limit
+     * @param maxBytesPerSecond the maximum number of bytes to write per second, {@code 0} for no limit
+     */
+    OutputPolicy(long maxBytes, long maxBytesPerSecond) {
+        this.maxBytes = Math.min(MAX_BYTES, Math.max(0, maxBytes));
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+    }
+
+    /**
+     * @return whether the output gets limited at all
+     */
+    boolean isLimited() {
+        return maxBytes > 0 || maxBytesPerSecond > 0;
+    }
+
+    /**
+     * Applies the policy to the given stream. Closing the returned stream writes the retained tail of the output and flushes the given stream, but doesn't close it.
+     *
+     * @param out      the stream to write the limited output to
+     * @param throttle whether to apply the maximum rate, which must not be done on a thread serving a channel
+     * @return the stream to write the output of the script to
+     */
+    OutputStream wrap(OutputStream out, boolean throttle) {
+        return new LimitedOutputStream(out, maxBytes, throttle ? maxBytesPerSecond : 0);
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (flusher == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "managed script output flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            flusher = executor;
+        }
+        return flusher;
+    }
+
+    private static final class LimitedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        private long lastFlush = System.nanoTime();
+        // the timed flush of output held back, if any
+        private ScheduledFuture<?> pendingFlush;
+
+        // head and tail retention
+        private final long headBytes;
+        private final int tailSize;
+        private byte[] tail;
+        private long written;
+        private long tailBytes;
+
+        // rate limiting, in windows of about a second
+        private final long maxBytesPerSecond;
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+
+        private boolean closed;
+        // once closed, throttling ends at this time
+        private long closeDeadline;
+
+        LimitedOutputStream(OutputStream out, long maxBytes, long maxBytesPerSecond) {
+            this.out = out;
+            this.headBytes = maxBytes > 0 ? maxBytes - maxBytes / 2 : Long.MAX_VALUE;
+            this.tailSize = (int) (maxBytes / 2);
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            int head = (int) Math.min(len, headBytes - written);
+            if (head > 0) {
+                // counted up front, the throttle lets other threads in while waiting
+                written += head;
+                emit(b, off, head);
+            }
+            if (head < len && tail == null) {
+                tail = new byte[tailSize];
+            }
+            for (int i = Math.max(head, 0); i < len; i++) {
+                // only the last bytes are kept, the ring buffer wraps around
+                if (tail.length > 0) {
+                    tail[(int) (tailBytes % tail.length)] = b[off + i];
+                }
+                tailBytes++;
+            }
+            if (count > 0) {
+                // passes the output on or schedules it, even if the script doesn't flush
+                flush(false);
+            }
+        }
+
+        private void emit(byte[] b, int off, int len) throws IOException {
+            throttle(len);
+            if (len > buffer.length - count) {
+                flushBuffer();
+            }
+            if (len >= buffer.length) {
+                out.write(b, off, len);
+            } else {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+        }
+
+        private void throttle(int len) throws IOException {
+            if (maxBytesPerSecond <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - windowStart > TimeUnit.SECONDS.toNanos(1) && windowBytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond <= now - windowStart) {
+                windowStart = now;
+                windowBytes = 0;
+            }
+            windowBytes += len;
+            long due = windowBytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond - (now - windowStart);
+            if (due > 0) {
+                // let the output written so far through before waiting
+                flush(true);
+                long deadline = now + due;
+                try {
+                    for (long remaining = remaining(deadline); remaining > 0; remaining = remaining(deadline)) {
+                        // releases the lock, the timed flush and close must not wait for the throttled writer
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        /**
+         * @return the nanoseconds left to wait until the given time, bounded by the close deadline once the stream got closed
+         */
+        private long remaining(long deadline) {
+            long now = System.nanoTime();
+            return closed ? Math.min(deadline - now, closeDeadline - now) : deadline - now;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private void flush(boolean force) throws IOException {
+            long now = System.nanoTime();
+            long wait = TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS) - (now - lastFlush);
+            if (force || wait <= 0) {
+                if (pendingFlush != null) {
+                    pendingFlush.cancel(false);
+                    pendingFlush = null;
+                }
+                flushBuffer();
+                out.flush();
+                lastFlush = now;
+            } else if (pendingFlush == null) {
+                pendingFlush = getFlusher().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushPending();
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized void flushPending() {
+            pendingFlush = null;
+            if (closed) {
+                return;
+            }
+            try {
+                flush(true);
+            } catch (IOException e) {
+                // the next write or flush of the script fails the same way
+                LOGGER.log(Level.FINE, "Failed to flush the output", e);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            flush(false);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+            // a throttled writer stops waiting once the deadline passed
+            notifyAll();
+            if (tail == null) {
+                tail = new byte[0];
+            }
+            long omitted = tailBytes - tail.length;
+            if (omitted > 0) {
+                byte[] marker = ("\n[... " + omitted + " bytes of output omitted ...]\n").getBytes(StandardCharsets.UTF_8);
+                emit(marker, 0, marker.length);
+                if (tail.length > 0) {
+                    int start = (int) (tailBytes % tail.length);
+                    emit(tail, start, tail.length - start);
+                    emit(tail, 0, start);
+                }
+            } else if (tailBytes > 0) {
+                emit(tail, 0, (int) tailBytes);
+            }
+            flush(true);
+        }
+    }
+}
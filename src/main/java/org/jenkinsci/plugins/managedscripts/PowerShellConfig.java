@@ -10,30 +10,17 @@ import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.jenkinsci.plugins.configfiles.custom.CustomConfig;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
-public class PowerShellConfig extends Config {
+public class PowerShellConfig extends ManagedScriptConfig {
 
-  public final List<Arg> args;
+  // content and exit trailer, built on first use
+  private transient volatile String renderedContent;
 
   @DataBoundConstructor
   public PowerShellConfig(String id, String name, String comment, String content, List<Arg> args) {
-      super(id, name, comment, content);
-
-      if (args != null) {
-          List<Arg> filteredArgs = new ArrayList<PowerShellConfig.Arg>();
-          for (Arg arg : args) {
-              if (arg.name != null && arg.name.trim().length() > 0) {
-                  filteredArgs.add(arg);
-              }
-          }
-          this.args = filteredArgs;
-      } else {
-          this.args = null;
-      }
+      super(id, name, comment, content, args);
   }
 
     @Override
@@ -41,12 +28,27 @@ public class PowerShellConfig extends Config {
         return Jenkins.get().getDescriptorByType(PowerShellConfigProvider.class);
     }
 
-  public static class Arg implements Serializable {
-      public final String name;
+  /**
+   * @return the script as written to the execution host: with CRLF line endings and exiting with the exit code of the last command. Built only once per config (re)load.
+   */
+  public String getRenderedContent() {
+      String rendered = renderedContent;
+      if (rendered == null) {
+          rendered = withCrLf(content) + "\r\nexit $LastExitCode";
+          renderedContent = rendered;
+      }
+      return rendered;
+  }
+
+  @Override
+  protected Arg newArg(String name) {
+      return new Arg(name);
+  }
 
+  public static class Arg extends ManagedScriptConfig.Arg {
       @DataBoundConstructor
       public Arg(final String name) {
-          this.name = name;
+          super(name);
       }
   }
 
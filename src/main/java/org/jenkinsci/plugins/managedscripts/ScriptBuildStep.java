@@ -1,7 +1,9 @@
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.*;
 import hudson.model.*;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tasks.Shell;
@@ -9,14 +11,18 @@ import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+import org.jenkinsci.Symbol;
 import org.jenkinsci.lib.configprovider.model.Config;
-import org.jenkinsci.plugins.configfiles.ConfigFiles;
-import org.jenkinsci.plugins.managedscripts.ScriptConfig.Arg;
 import org.jenkinsci.plugins.managedscripts.ScriptConfig.ScriptConfigProvider;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.kohsuke.stapler.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,17 +33,40 @@ import java.util.logging.Logger;
  * A project that uses this builder can choose a build step from a list of predefined config files that are uses as command line scripts. The hash-bang sequence at the beginning of each file is used
  * to determine the interpreter.
  * <p>
+ * As a {@link SimpleBuildStep} it can also be used within pipelines, e.g. {@code managedScript buildStepId: 'my-script', defineArgs: true, buildStepArgs: [[arg: 'foo']]}.
+ * <p>
  *
  * @author Norman Baumann
  * @author Dominik Bartholdi (imod)
  */
-public class ScriptBuildStep extends Builder {
+public class ScriptBuildStep extends Builder implements SimpleBuildStep {
 
     private static Logger LOGGER = Logger.getLogger(ScriptBuildStep.class.getName());
 
+    /**
+     * the path the interpreter reads the script from if it is piped to it
+     */
+    static final String STDIN = "/dev/stdin";
+
+    /**
+     * separates arguments expanded together, a command line argument can't contain it anyway
+     */
+    private static final String ARGUMENT_SEPARATOR = "\0";
+
+    /**
+     * the maximum output limit in KiB, half of it is held in memory while the script is running
+     */
+    static final int MAX_OUTPUT_LIMIT = (int) (OutputPolicy.MAX_BYTES / 1024);
+
     private final String buildStepId;
     private final String[] buildStepArgs;
     private final boolean tokenized;
+    private boolean stdin;
+    private int outputLimit;
+    private int outputRateLimit;
+    private boolean compress;
+    // derived from buildStepArgs and tokenized
+    private transient volatile ArgumentTemplate argumentTemplate;
 
     public static class ArgValue {
         public final String arg;
@@ -89,93 +118,166 @@ public class ScriptBuildStep extends Builder {
         return tokenized;
     }
 
+    public boolean isStdin() {
+        return stdin;
+    }
+
+    /**
+     * @param stdin whether to pipe the script to the standard input of the interpreter instead of writing it to a file on the execution host
+     */
+    @DataBoundSetter
+    public void setStdin(boolean stdin) {
+        this.stdin = stdin;
+    }
+
+    public int getOutputLimit() {
+        return outputLimit;
+    }
+
+    /**
+     * @param outputLimit the maximum size of the output to keep in KiB, {@code 0} for no limit, at most {@link #MAX_OUTPUT_LIMIT}
+     */
+    @DataBoundSetter
+    public void setOutputLimit(int outputLimit) {
+        this.outputLimit = Math.min(MAX_OUTPUT_LIMIT, Math.max(0, outputLimit));
+    }
+
+    public int getOutputRateLimit() {
+        return outputRateLimit;
+    }
+
+    /**
+     * @param outputRateLimit the maximum rate to write output with in KiB per second, {@code 0} for no limit
+     */
+    @DataBoundSetter
+    public void setOutputRateLimit(int outputRateLimit) {
+        this.outputRateLimit = Math.max(0, outputRateLimit);
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * @param compress whether to compress the output of the script on its way from the execution host to the controller
+     */
+    @DataBoundSetter
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
     /**
      * Perform the build step on the execution host.
      * <p>
-     * Generates a temporary file and copies the content of the predefined config file (by using the buildStepId) into it. It then copies this file into the workspace directory of the execution host
-     * and executes it.
+     * Looks up the content of the predefined config file (by using the buildStepId) in the {@link ScriptCache} of the execution host, only transferring it if the host does not hold it yet. If
+     * the cache can't be used, or the launcher is decorated (e.g. to run the script in a container or as another user, who can't access the cache of the agent), the content is copied into a
+     * temporary file in the workspace directory of the execution host instead. The script is then executed from there, directly by its
+     * interpreter, so the same single copy and single process is used for freestyle jobs and pipelines.
+     * <p>
+     * If {@link #isStdin()} is set, no file gets written at all. The script is streamed to the interpreter, which reads it from {@code /dev/stdin}. This doesn't apply to scripts with
+     * libraries (see {@link ScriptConfig#getLibraryIds()}), which are always placed in a directory next to the script.
+     * <p>
+     * If the output is limited (see {@link OutputPolicy}) or compressed and the launcher isn't decorated, the script is executed by {@link AgentScriptRunner} instead, which applies the
+     * limits and the compression on the execution host already. Otherwise the limits are applied on the controller, without the rate limit, and the output is not compressed.
      */
     @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+    public void perform(@NonNull Run<?, ?> build, @NonNull FilePath workspace, @NonNull EnvVars env, @NonNull Launcher launcher, @NonNull TaskListener listener) throws InterruptedException, IOException {
         boolean returnValue = true;
-        Config buildStepConfig = ConfigFiles.getByIdOrNull(build, buildStepId);
+        long start = System.nanoTime();
+        Config buildStepConfig = ConfigIndex.get(build, buildStepId, Config.class);
         if (buildStepConfig == null) {
-            listener.getLogger().println(Messages.config_does_not_exist(buildStepId));
-            return false;
+            throw new AbortException(Messages.config_does_not_exist(buildStepId));
+        }
+        // only for existing configs, every metrics instance is registered as MBean
+        ScriptMetrics metrics = ScriptMetrics.get(buildStepId);
+        metrics.lookup.recordSince(start);
+        ScriptCache.recordUse(build.getParent().getParent(), buildStepId);
+        Map<String, String> libraries = getLibraries(build, buildStepConfig);
+        boolean stdin = this.stdin && libraries.isEmpty();
+        OutputPolicy outputPolicy = new OutputPolicy(outputLimit * 1024L, outputRateLimit * 1024L);
+        if ((outputPolicy.isLimited() || compress) && !stdin && libraries.isEmpty() && AgentScriptRunner.canReplace(launcher)) {
+            performOnAgent(build, workspace, env, listener, buildStepConfig, outputPolicy, metrics);
+            return;
         }
         listener.getLogger().println("executing script '" + buildStepConfig.name + "'");
         FilePath dest = null;
+        OutputStream out = null;
+        int r = -1;
         try {
-            FilePath workingDir = build.getWorkspace();
-            EnvVars env = build.getEnvironment(listener);
             String data = buildStepConfig.content;
 
-            if (workingDir != null) {
-                /*
-                 * Copying temporary file to remote execution host
-                 */
-                dest = workingDir.createTextTempFile("build_step_template", ".sh", data, false);
-                LOGGER.log(Level.FINE, "Wrote script to " + Computer.currentComputer().getDisplayName() + ":" + dest.getRemote());
-
-                /*
-                 * Analyze interpreter line (and use the desired interpreter)
-                 */
-                ArgumentListBuilder args = new ArgumentListBuilder();
-                if (data.startsWith("#!")) {
-                    String interpreterLine = data.substring(2, data.indexOf("\n"));
-                    String[] interpreterElements = interpreterLine.split("\\s+");
-                    // Add interpreter to arguments list
-                    String interpreter = interpreterElements[0];
-                    args.add(interpreter);
-                    LOGGER.log(Level.FINE, "Using custom interpreter: " + interpreterLine);
-                    // Add addition parameter to arguments list
-                    for (int i = 1; i < interpreterElements.length; i++) {
-                        args.add(interpreterElements[i]);
-                    }
-                } else {
-                    // the shell executable is already configured for the Shell
-                    // task, reuse it
-                    final Shell.DescriptorImpl shellDescriptor = (Shell.DescriptorImpl) Jenkins.get().getDescriptor(Shell.class);
-                    if (shellDescriptor != null) {
-                        final String interpreter = shellDescriptor.getShellOrDefault(workingDir.getChannel());
-                        args.add(interpreter);
+            /*
+             * Make the script available on the remote execution host
+             */
+            Computer computer = workspace.toComputer();
+            String scriptPath;
+            if (stdin) {
+                scriptPath = STDIN;
+            } else {
+                start = System.nanoTime();
+                Node node = computer == null ? null : computer.getNode();
+                FilePath script = node == null || !AgentScriptRunner.canReplace(launcher) ? null : ScriptCache.get(node, data, libraries, ScriptCache.key(build.getParent().getParent(), buildStepId));
+                if (script == null && libraries.isEmpty()) {
+                    dest = workspace.createTextTempFile("build_step_template", ".sh", data, false);
+                    script = dest;
+                } else if (script == null) {
+                    dest = workspace.createTempDir("build_step_template", "");
+                    script = dest.child("script.sh");
+                    script.write(data, null);
+                    for (Map.Entry<String, String> library : libraries.entrySet()) {
+                        dest.child(ScriptConfig.LIBRARY_DIR).child(library.getKey()).write(library.getValue(), null);
                     }
                 }
+                metrics.transfer.recordSince(start);
+                scriptPath = script.getRemote();
+            }
+            LOGGER.log(Level.FINE, "Using script " + scriptPath);
 
-                args.add(dest.getRemote());
-
-                // Add additional parameters set by user
-                if (buildStepArgs != null) {
-                    for (String arg : buildStepArgs) {
-                        final String expanded = TokenMacro.expandAll(build, listener, arg, false, null);
-                        if (tokenized) {
-                            args.addTokenized(expanded);
-                        } else {
-                            args.add(expanded);
-                        }
-                    }
-                }
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            addInterpreter(args, buildStepConfig, workspace.getChannel());
+            args.add(scriptPath);
+            addArguments(args, build, workspace, listener);
 
             /*
              * Execute command remotely
              */
-                int r = launcher.launch().cmds(args).envs(env).stderr(listener.getLogger()).stdout(listener.getLogger()).pwd(workingDir).join();
-                returnValue = (r == 0);
-            } else {
-                LOGGER.log(Level.SEVERE, "no workspace precent, cant run script!");
-                returnValue = false;
+            start = System.nanoTime();
+            out = outputPolicy.isLimited() ? outputPolicy.wrap(listener.getLogger(), false) : listener.getLogger();
+            // stderr is redirected to stdout, so both are limited together
+            Launcher.ProcStarter starter = launcher.launch().cmds(args).envs(env).stdout(out).pwd(workspace);
+            if (stdin) {
+                Charset charset = computer == null ? Charset.defaultCharset() : computer.getDefaultCharset();
+                starter.stdin(new ByteArrayInputStream(data.getBytes(charset)));
             }
+            Proc proc = starter.start();
+            metrics.launch.recordSince(start);
+            r = proc.join();
+            metrics.run.recordSince(start);
+            metrics.recordExitCode(r);
+            returnValue = (r == 0);
 
         } catch (IOException e) {
             Util.displayIOException(e, listener);
             e.printStackTrace(listener.fatalError("Cannot create temporary script for '" + buildStepConfig.name + "'"));
             returnValue = false;
+        } catch (InterruptedException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace(listener.fatalError("Caught exception while loading script '" + buildStepConfig.name + "'"));
             returnValue = false;
         } finally {
+            if (out != null && out != listener.getLogger()) {
+                try {
+                    // writes the retained tail, the build log itself stays open
+                    out.close();
+                } catch (IOException e) {
+                    Util.displayIOException(e, listener);
+                }
+            }
             try {
-                if (dest != null && dest.exists()) {
+                if (dest != null && dest.isDirectory()) {
+                    dest.deleteRecursive();
+                } else if (dest != null && dest.exists()) {
                     dest.delete();
                 }
             } catch (Exception e) {
@@ -184,7 +286,177 @@ public class ScriptBuildStep extends Builder {
             }
         }
         LOGGER.log(Level.FINE, "Finished script step");
-        return returnValue;
+        if (!returnValue) {
+            throw new AbortException(r > 0 ? "script '" + buildStepConfig.name + "' returned exit code " + r : "script '" + buildStepConfig.name + "' failed");
+        }
+    }
+
+    /**
+     * @param build  the build the script is executed for
+     * @param config the script to execute
+     * @return the content of the libraries of the script by file name, empty if it has none
+     * @throws AbortException if a library doesn't exist or two libraries would be written to the same file
+     */
+    static Map<String, String> getLibraries(Run<?, ?> build, Config config) throws AbortException {
+        if (!(config instanceof ScriptConfig) || ((ScriptConfig) config).getLibraryIds().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> libraries = new LinkedHashMap<String, String>();
+        Map<String, Config> byFileName = new HashMap<String, Config>();
+        for (String libraryId : ((ScriptConfig) config).getLibraryIds()) {
+            Config library = ConfigIndex.get(build, libraryId, Config.class);
+            if (library == null) {
+                throw new AbortException(Messages.config_does_not_exist(libraryId));
+            }
+            String fileName = ScriptConfig.getLibraryFileName(library.name);
+            Config other = byFileName.put(fileName, library);
+            if (other != null && !other.id.equals(library.id)) {
+                // one would silently replace the other
+                throw new AbortException(Messages.library_name_collision(other.name, library.name, config.name, fileName));
+            }
+            libraries.put(fileName, library.content == null ? "" : library.content);
+        }
+        return libraries;
+    }
+
+    /**
+     * Executes the script through {@link AgentScriptRunner}, which limits and compresses the output on the execution host already.
+     */
+    private void performOnAgent(Run<?, ?> build, FilePath workspace, EnvVars env, TaskListener listener, Config config, OutputPolicy outputPolicy, ScriptMetrics metrics) throws InterruptedException, IOException {
+        ArgumentListBuilder interpreter = new ArgumentListBuilder();
+        addInterpreter(interpreter, config, workspace.getChannel());
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        try {
+            addArguments(args, build, workspace, listener);
+        } catch (MacroEvaluationException e) {
+            e.printStackTrace(listener.fatalError("Caught exception while loading script '" + config.name + "'"));
+            throw new AbortException("script '" + config.name + "' failed");
+        }
+        AgentScriptRunner.Invocation invocation = new AgentScriptRunner.Invocation(config.name, config.content, ".sh", interpreter.toList(), "%s", args.toList());
+        AgentScriptRunner.Result result = new AgentScriptRunner(Collections.singletonList(invocation), env, listener.getLogger(), outputPolicy, compress).execute(workspace).get(0);
+        metrics.run.record(result.durationNanos);
+        metrics.recordExitCode(result.exitCode);
+        if (result.exitCode != 0) {
+            throw new AbortException("script '" + config.name + "' returned exit code " + result.exitCode);
+        }
+    }
+
+    /**
+     * Analyze interpreter line (and use the desired interpreter)
+     *
+     * @param args    the command line to add the interpreter to
+     * @param config  the script to execute
+     * @param channel the channel to the execution host
+     */
+    static void addInterpreter(ArgumentListBuilder args, Config config, VirtualChannel channel) {
+        InterpreterLine interpreterLine = config instanceof ScriptConfig ? ((ScriptConfig) config).getInterpreterLine() : InterpreterLine.parse(config.content);
+        if (interpreterLine != null) {
+            // Add interpreter and its parameters to arguments list
+            for (String element : interpreterLine.getCommand()) {
+                args.add(element);
+            }
+            LOGGER.log(Level.FINE, "Using custom interpreter: " + interpreterLine);
+        } else {
+            // the shell executable is already configured for the Shell
+            // task, reuse it
+            final Shell.DescriptorImpl shellDescriptor = (Shell.DescriptorImpl) Jenkins.get().getDescriptor(Shell.class);
+            if (shellDescriptor != null) {
+                final String interpreter = shellDescriptor.getShellOrDefault(channel);
+                args.add(interpreter);
+            }
+        }
+    }
+
+    /**
+     * Add additional parameters set by user
+     *
+     * @param args the command line to add the parameters to
+     */
+    void addArguments(ArgumentListBuilder args, Run<?, ?> build, FilePath workspace, TaskListener listener) throws MacroEvaluationException, IOException, InterruptedException {
+        ArgumentTemplate template = getArgumentTemplate();
+        String[] expanded = template.macroArgs.length == 0 ? template.macroArgs : expandArguments(build, workspace, listener, template.macroArgs);
+        int next = 0;
+        for (String[] tokens : template.tokens) {
+            if (tokens != null) {
+                args.add(tokens);
+            } else if (tokenized) {
+                args.addTokenized(expanded[next++]);
+            } else {
+                args.add(expanded[next++]);
+            }
+        }
+    }
+
+    private ArgumentTemplate getArgumentTemplate() {
+        ArgumentTemplate template = argumentTemplate;
+        if (template == null) {
+            // on first use, whether the step got configured or loaded from disk, XStream leaves transient fields null
+            template = new ArgumentTemplate(buildStepArgs, tokenized);
+            argumentTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * The arguments of a step, prepared once per instance: arguments without any {@code $} are final and, if the step is tokenized, already split into tokens. Only the others have to be
+     * expanded (and split) per build.
+     */
+    private static final class ArgumentTemplate {
+        // per argument: its final tokens, or null if it has to be expanded
+        final String[][] tokens;
+        // the arguments to expand, in order
+        final String[] macroArgs;
+
+        ArgumentTemplate(String[] args, boolean tokenized) {
+            List<String> macros = new ArrayList<String>();
+            tokens = new String[args == null ? 0 : args.length][];
+            for (int i = 0; i < tokens.length; i++) {
+                String arg = args[i];
+                if (arg != null && arg.indexOf('$') < 0) {
+                    tokens[i] = tokenized ? Util.tokenize(arg) : new String[]{arg};
+                } else {
+                    macros.add(arg);
+                }
+            }
+            macroArgs = macros.toArray(new String[macros.size()]);
+        }
+    }
+
+    /**
+     * Expands the macros of all arguments with a single call of {@link TokenMacro}, so the environment of the build is computed and the macros are resolved only once. Arguments without any
+     * {@code $} can't reference anything and are taken as they are. If the expanded arguments can't be told apart anymore, they are expanded one by one instead.
+     *
+     * @param args the arguments to expand
+     * @return the expanded arguments
+     */
+    static String[] expandArguments(Run<?, ?> build, FilePath workspace, TaskListener listener, String[] args) throws MacroEvaluationException, IOException, InterruptedException {
+        String[] expanded = Arrays.copyOf(args, args.length);
+        List<Integer> indexes = new ArrayList<Integer>();
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != null && args[i].indexOf('$') >= 0) {
+                if (!indexes.isEmpty()) {
+                    joined.append(ARGUMENT_SEPARATOR);
+                }
+                joined.append(args[i]);
+                indexes.add(i);
+            }
+        }
+        if (indexes.isEmpty()) {
+            return expanded;
+        }
+        String[] parts = TokenMacro.expandAll(build, workspace, listener, joined.toString(), false, null).split(ARGUMENT_SEPARATOR, -1);
+        if (parts.length == indexes.size()) {
+            for (int i = 0; i < parts.length; i++) {
+                expanded[indexes.get(i)] = parts[i];
+            }
+        } else {
+            LOGGER.log(Level.FINE, "Expanded arguments can't be split, expanding them one by one");
+            for (int i : indexes) {
+                expanded[i] = TokenMacro.expandAll(build, workspace, listener, args[i], false, null);
+            }
+        }
+        return expanded;
     }
 
     // Overridden for better type safety.
@@ -197,6 +469,7 @@ public class ScriptBuildStep extends Builder {
      * Descriptor for {@link ScriptBuildStep}.
      */
     @Extension(ordinal = 50)
+    @Symbol("managedScript")
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
         final Logger logger = Logger.getLogger(ScriptBuildStep.class.getName());
 
@@ -222,47 +495,18 @@ public class ScriptBuildStep extends Builder {
          * @return A collection of config files of type {@link ScriptConfig}.
          */
         public ListBoxModel doFillBuildStepIdItems(@AncestorInPath ItemGroup context) {
-            List<Config> configsInContext = ConfigFiles.getConfigsInContext(context, ScriptConfigProvider.class);
-            Collections.sort(configsInContext, new Comparator<Config>() {
-                public int compare(Config o1, Config o2) {
-                    return o1.name.compareTo(o2.name);
-                }
-            });
-
-            ListBoxModel items = new ListBoxModel();
-            items.add("please select", "");
-            for (Config config : configsInContext) {
-                items.add(config.name, config.id);
-            }
-            return items;
+            return ConfigIndex.getItems(context, ScriptConfigProvider.class);
         }
 
 
-        /**
-         * gets the argument description to be displayed on the screen when selecting a config in the dropdown
-         *
-         * @param configId the config id to get the arguments description for
-         * @return the description
-         */
-        private String getArgsDescription(@AncestorInPath Item context, String configId) {
-            final ScriptConfig config = ConfigFiles.getByIdOrNull(context, configId);
-            if (config != null) {
-                if (config.args != null && !config.args.isEmpty()) {
-                    StringBuilder sb = new StringBuilder("Required arguments: ");
-                    int i = 1;
-                    for (Iterator<Arg> iterator = config.args.iterator(); iterator.hasNext(); i++) {
-                        Arg arg = iterator.next();
-                        sb.append(i).append(". ").append(arg.name);
-                        if (iterator.hasNext()) {
-                            sb.append(" | ");
-                        }
-                    }
-                    return sb.toString();
-                } else {
-                    return "No arguments required";
-                }
+        public FormValidation doCheckOutputLimit(@QueryParameter int value) {
+            if (value < 0) {
+                return FormValidation.error("must not be negative");
+            }
+            if (value > MAX_OUTPUT_LIMIT) {
+                return FormValidation.warning("at most " + MAX_OUTPUT_LIMIT + " KiB are kept");
             }
-            return "please select a valid script!";
+            return FormValidation.ok();
         }
 
         /**
@@ -273,9 +517,9 @@ public class ScriptBuildStep extends Builder {
          * @return whether the config existts or not
          */
         public HttpResponse doCheckBuildStepId(StaplerRequest req, @AncestorInPath Item context, @QueryParameter String buildStepId) {
-            final ScriptConfig config = ConfigFiles.getByIdOrNull(context, buildStepId);
+            final ScriptConfig config = ConfigIndex.get(context, buildStepId, ScriptConfig.class);
             if (config != null) {
-                return DetailLinkDescription.getDescription(req, context, buildStepId, getArgsDescription(context, buildStepId));
+                return DetailLinkDescription.getDescription(req, context, config, config.getArgsDescription());
             } else {
                 return FormValidation.error("you must select a valid script");
             }
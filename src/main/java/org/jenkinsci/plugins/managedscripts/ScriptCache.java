@@ -0,0 +1,862 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.ItemGroup;
+import hudson.model.Node;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed cache of managed scripts on the nodes executing them.
+ * <p>
+ * Every script is stored below the root directory of the node (not the workspace) in a directory named by the SHA-256 of its content. The controller first asks the node whether it already
+ * holds the content and only transfers the script if it does not. The cache is bounded in size, the least recently used entries get evicted first. The hash covers the files exactly as
+ * written, i.e. encoded with the default charset of the node, as any script copied to a node is.
+ * <p>
+ * The cache is only accessible by the user running the agent, where the file system supports it. As builds on the same node usually run as that user too, an entry is only used after its
+ * content got verified against its hash. Entries not matching their hash, e.g. modified by a build, are deleted and transferred again.
+ * <p>
+ * To spare the first builds on a fresh node the transfer, the most used global scripts are pushed to every node coming online, in a single remote call in the background. The same
+ * happens for online nodes whenever one of these scripts changes. Scripts stored in folders are never pushed, as the node might not be meant for the jobs of the folder.
+ * <p>
+ * If a node misses a large script but still holds its former version, only the difference to the former version is transferred (see {@link ScriptDelta}).
+ * <p>
+ * A script with libraries (see {@link ScriptConfig#getLibraryIds()}) is cached as a single entry holding all of its files, keyed by the hash of all of them and transferred at once.
+ */
+public final class ScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptCache.class.getName());
+
+    /**
+     * name of the cache directory below the root of a node
+     */
+    static final String CACHE_DIR = "managed-scripts-cache";
+
+    /**
+     * name of the script file within a cache entry
+     */
+    static final String SCRIPT_NAME = "script.sh";
+
+    /**
+     * set to {@code true} to always copy scripts into the workspace
+     */
+    static boolean DISABLED = SystemProperties.getBoolean(ScriptCache.class.getName() + ".disabled");
+
+    /**
+     * the size in bytes the cache on each node is trimmed to after a new script got added
+     */
+    static long MAX_SIZE = SystemProperties.getLong(ScriptCache.class.getName() + ".maxSize", 64L * 1024 * 1024);
+
+    /**
+     * entries used more recently than this are never evicted, as a build might still be executing them
+     */
+    static long MIN_AGE = SystemProperties.getLong(ScriptCache.class.getName() + ".minAge", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * the number of most used scripts pushed to nodes coming online, {@code 0} to disable
+     */
+    static int PREWARM_COUNT = SystemProperties.getInteger(ScriptCache.class.getName() + ".prewarmCount", 20);
+
+    /**
+     * scripts not used for this long are not pushed to nodes anymore
+     */
+    static long PREWARM_MAX_IDLE = SystemProperties.getLong(ScriptCache.class.getName() + ".prewarmMaxIdle", TimeUnit.DAYS.toMillis(7));
+
+    /**
+     * the minimum size in characters of a script to transfer only its difference to the former version
+     */
+    static int DELTA_MIN_SIZE = SystemProperties.getInteger(ScriptCache.class.getName() + ".deltaMinSize", 64 * 1024);
+
+    private static final ConcurrentMap<String, Statistics> STATISTICS = new ConcurrentHashMap<String, Statistics>();
+
+    // usage of the scripts by context and config id
+    private static final ConcurrentMap<String, Usage> USAGE = new ConcurrentHashMap<String, Usage>();
+
+    // the hash of the version of a script most recently made available on any node, by context and config id
+    private static final ConcurrentMap<String, String> VERSIONS = new ConcurrentHashMap<String, String>();
+
+    // the hashes of the scripts pushed to each node most recently, by node name
+    private static final ConcurrentMap<String, Set<String>> PREWARMED = new ConcurrentHashMap<String, Set<String>>();
+
+    // the hash of the most used scripts when a save got checked for changes of them the last time
+    private static String hotScriptsVersion;
+
+    private ScriptCache() {
+    }
+
+    /**
+     * Makes sure the given script is available in the cache of the node and returns its location there.
+     *
+     * @param node    the node to execute the script on
+     * @param content the content of the script
+     * @return the cached script or {@code null} if the cache can't be used for this node, in which case the caller is expected to copy the script itself
+     */
+    @CheckForNull
+    public static FilePath get(@NonNull Node node, @NonNull String content) throws InterruptedException {
+        return get(node, content, Collections.<String, String>emptyMap(), null);
+    }
+
+    /**
+     * Makes sure the given script and its libraries are available in the cache of the node and returns the location of the script there. If the node holds the former version of a script
+     * without libraries, only the difference is transferred.
+     *
+     * @param node      the node to execute the script on
+     * @param content   the content of the script
+     * @param libraries the content of the libraries to place in {@link ScriptConfig#LIBRARY_DIR} next to the script, by file name
+     * @param key       identifies the script across its versions, see {@link #key(ItemGroup, String)}
+     * @return the cached script or {@code null} if the cache can't be used for this node, in which case the caller is expected to copy the script itself
+     */
+    @CheckForNull
+    public static FilePath get(@NonNull Node node, @NonNull String content, @NonNull Map<String, String> libraries, @CheckForNull String key) throws InterruptedException {
+        if (DISABLED) {
+            return null;
+        }
+        FilePath root = node.getRootPath();
+        Charset charset = getCharset(node);
+        if (root == null || charset == null) {
+            return null;
+        }
+        FilePath cache = root.child(CACHE_DIR);
+        Map<String, byte[]> files = encode(files(content, libraries), charset);
+        String hash = hash(files);
+        Statistics statistics = getStatistics(node.getNodeName());
+        String former = libraries.isEmpty() ? getFormerVersion(key, hash, content) : null;
+        try {
+            LookupResult result = cache.act(new Lookup(hash, former, charset.name()));
+            if (result.found) {
+                statistics.hits.incrementAndGet();
+                LOGGER.log(Level.FINE, "Found script {0} in cache of {1}", new Object[]{hash, node.getDisplayName()});
+            } else {
+                statistics.misses.incrementAndGet();
+                add(cache, hash, files, charset, former, result.former, statistics);
+                LOGGER.log(Level.FINE, "Added script {0} to cache of {1}", new Object[]{hash, node.getDisplayName()});
+            }
+            if (key != null) {
+                VERSIONS.put(key, hash);
+            }
+            return cache.child(hash).child(SCRIPT_NAME);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to use script cache on " + node.getDisplayName() + ", falling back to the workspace", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the hash of the former version of the script to transfer only the difference to, {@code null} if the whole script is to be transferred
+     */
+    @CheckForNull
+    private static String getFormerVersion(@CheckForNull String key, String hash, String content) {
+        if (key == null || content.length() < DELTA_MIN_SIZE) {
+            return null;
+        }
+        String former = VERSIONS.get(key);
+        return hash.equals(former) ? null : former;
+    }
+
+    /**
+     * @return the charset the scripts are written with on the node, {@code null} if unknown as the node is not connected
+     */
+    @CheckForNull
+    private static Charset getCharset(Node node) {
+        Computer computer = node.toComputer();
+        return computer == null ? null : computer.getDefaultCharset();
+    }
+
+    /**
+     * @return the files of a cache entry by path relative to the entry
+     */
+    static Map<String, String> files(String content, Map<String, String> libraries) {
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        files.put(SCRIPT_NAME, content);
+        for (Map.Entry<String, String> library : libraries.entrySet()) {
+            files.put(ScriptConfig.LIBRARY_DIR + '/' + library.getKey(), library.getValue());
+        }
+        return files;
+    }
+
+    /**
+     * @return the files as written to the node, the hash of an entry is computed from exactly these bytes
+     */
+    static Map<String, byte[]> encode(Map<String, String> files, Charset charset) {
+        Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            encoded.put(file.getKey(), file.getValue().getBytes(charset));
+        }
+        return encoded;
+    }
+
+    /**
+     * Adds a script missing on a node, only transferring the difference to the former version if the node holds that.
+     */
+    private static void add(FilePath cache, String hash, Map<String, byte[]> files, Charset charset, @CheckForNull String former, @CheckForNull ScriptDelta.Signature signature,
+            Statistics statistics) throws IOException, InterruptedException {
+        if (signature != null) {
+            String content = new String(files.get(SCRIPT_NAME), charset);
+            ScriptDelta delta = ScriptDelta.diff(signature, content);
+            // not worth it if most of the script changed
+            if (delta.getLiteralLength() <= content.length() / 2 && cache.act(new Patch(hash, former, charset.name(), delta, MAX_SIZE, MIN_AGE))) {
+                statistics.deltas.incrementAndGet();
+                LOGGER.log(Level.FINE, "Transferred {0} of {1} characters of script {2}", new Object[]{delta.getLiteralLength(), content.length(), hash});
+                return;
+            }
+        }
+        cache.act(new Store(Collections.singletonMap(hash, files), MAX_SIZE, MIN_AGE));
+    }
+
+    /**
+     * @param context the context the config got resolved in
+     * @param id      the id of the config
+     * @return the key identifying a script across its versions
+     */
+    @NonNull
+    public static String key(@NonNull ItemGroup<?> context, @NonNull String id) {
+        return context.getFullName() + '\n' + id;
+    }
+
+    /**
+     * Records that a script got executed, for the selection of the scripts to push to nodes coming online.
+     *
+     * @param context the context the config got resolved in
+     * @param id      the id of the config
+     */
+    public static void recordUse(@NonNull ItemGroup<?> context, @NonNull String id) {
+        String key = key(context, id);
+        Usage usage = USAGE.get(key);
+        if (usage == null) {
+            Usage created = new Usage(id);
+            usage = USAGE.putIfAbsent(key, created);
+            if (usage == null) {
+                usage = created;
+            }
+        }
+        usage.count.incrementAndGet();
+        usage.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Only global configs are selected. The configs of a folder are only visible to its jobs, which might be restricted to some of the nodes, so they are never pushed to other nodes.
+     *
+     * @return the files of the most used global scripts, by {@link #key(ItemGroup, String)}
+     */
+    @NonNull
+    static Map<String, Map<String, String>> getHotScripts() {
+        long threshold = System.currentTimeMillis() - PREWARM_MAX_IDLE;
+        // the uses of a global script within all contexts count
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (Usage usage : USAGE.values()) {
+            if (usage.lastUsed > threshold) {
+                Long count = counts.get(usage.id);
+                counts.put(usage.id, usage.count.get() + (count == null ? 0 : count));
+            }
+        }
+        List<String> ids = new ArrayList<String>(counts.keySet());
+        Collections.sort(ids, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return Long.compare(counts.get(o2), counts.get(o1));
+            }
+        });
+        Map<String, Map<String, String>> scripts = new LinkedHashMap<String, Map<String, String>>();
+        Jenkins jenkins = Jenkins.get();
+        for (String id : ids) {
+            if (scripts.size() >= PREWARM_COUNT) {
+                break;
+            }
+            // not using the ConfigIndex, it might not be invalidated yet when a config got saved
+            Config config = ConfigFiles.getByIdOrNull(jenkins, id);
+            if (config == null || config.content == null) {
+                continue;
+            }
+            Map<String, String> libraries = new LinkedHashMap<String, String>();
+            if (config instanceof ScriptConfig) {
+                for (String libraryId : new LinkedHashSet<String>(((ScriptConfig) config).getLibraryIds())) {
+                    Config library = ConfigFiles.getByIdOrNull(jenkins, libraryId);
+                    String fileName = library == null ? null : ScriptConfig.getLibraryFileName(library.name);
+                    if (library == null || libraries.containsKey(fileName)) {
+                        // missing or colliding with another library, the build step fails anyway
+                        libraries = null;
+                        break;
+                    }
+                    libraries.put(fileName, library.content == null ? "" : library.content);
+                }
+            }
+            if (libraries != null) {
+                scripts.put(key(jenkins, id), files(config.content, libraries));
+            }
+        }
+        return scripts;
+    }
+
+    /**
+     * Remembers the most used scripts.
+     *
+     * @return whether the most used scripts or their content changed since this got called the last time
+     */
+    static boolean hotScriptsChanged() {
+        Map<String, String> files = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Map<String, String>> script : getHotScripts().entrySet()) {
+            for (Map.Entry<String, String> file : script.getValue().entrySet()) {
+                files.put(script.getKey() + '\n' + file.getKey(), file.getValue());
+            }
+        }
+        String version = hash(encode(files, StandardCharsets.UTF_8));
+        synchronized (ScriptCache.class) {
+            boolean changed = !version.equals(hotScriptsVersion);
+            hotScriptsVersion = version;
+            return changed;
+        }
+    }
+
+    /**
+     * Pushes the most used scripts to the given nodes in the background. Each node is asked for the scripts it is missing with a single call first, only these are transferred.
+     *
+     * @param nodes        the nodes to push the scripts to
+     * @param changedOnly  whether to skip nodes the most used scripts got pushed to already since they changed the last time
+     */
+    static void prewarm(@NonNull final List<Node> nodes, final boolean changedOnly) {
+        if (DISABLED || PREWARM_COUNT <= 0 || nodes.isEmpty() || USAGE.isEmpty()) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Map<String, String>> scripts = getHotScripts();
+                if (scripts.isEmpty()) {
+                    return;
+                }
+                // the entries differ by the charset of the nodes
+                Map<Charset, Entries> entriesByCharset = new HashMap<Charset, Entries>();
+                for (Node node : nodes) {
+                    FilePath root = node.getRootPath();
+                    Charset charset = getCharset(node);
+                    if (root == null || charset == null) {
+                        continue;
+                    }
+                    Entries entries = entriesByCharset.get(charset);
+                    if (entries == null) {
+                        entries = new Entries(scripts, charset);
+                        entriesByCharset.put(charset, entries);
+                    }
+                    Set<String> prewarmed = PREWARMED.get(node.getNodeName());
+                    if (changedOnly && prewarmed != null && prewarmed.containsAll(entries.pushed)) {
+                        continue;
+                    }
+                    FilePath cache = root.child(CACHE_DIR);
+                    try {
+                        Map<String, ScriptDelta.Signature> missing = cache.act(new Missing(entries.formers, charset.name()));
+                        Map<String, Map<String, byte[]>> whole = new LinkedHashMap<String, Map<String, byte[]>>();
+                        for (Map.Entry<String, ScriptDelta.Signature> script : missing.entrySet()) {
+                            if (script.getValue() == null) {
+                                whole.put(script.getKey(), entries.files.get(script.getKey()));
+                            } else {
+                                // large scripts of which the node holds a former version are transferred one by one, as only their difference might be needed
+                                add(cache, script.getKey(), entries.files.get(script.getKey()), charset, entries.formers.get(script.getKey()), script.getValue(),
+                                        getStatistics(node.getNodeName()));
+                            }
+                        }
+                        if (!whole.isEmpty()) {
+                            cache.act(new Store(whole, MAX_SIZE, MIN_AGE));
+                        }
+                        PREWARMED.put(node.getNodeName(), entries.pushed);
+                        VERSIONS.putAll(entries.hashes);
+                        LOGGER.log(Level.FINE, "Pushed {0} of {1} scripts to cache of {2}", new Object[]{missing.size(), entries.files.size(), node.getDisplayName()});
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to push scripts to cache of " + node.getDisplayName(), e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @param nodeName the name of the node, empty for the built-in node
+     * @return the hit/miss counters of the cache on the given node
+     */
+    @NonNull
+    public static Statistics getStatistics(@NonNull String nodeName) {
+        Statistics statistics = STATISTICS.get(nodeName);
+        if (statistics == null) {
+            Statistics created = new Statistics();
+            statistics = STATISTICS.putIfAbsent(nodeName, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @return the hit/miss counters of all nodes the cache was used on since startup, keyed by node name
+     */
+    @NonNull
+    public static Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(STATISTICS);
+    }
+
+    /**
+     * @param files the files of a cache entry by path relative to the entry, as written to the node
+     * @return the hex encoded SHA-256 identifying the entry
+     */
+    @NonNull
+    static String hash(@NonNull Map<String, byte[]> files) {
+        MessageDigest digest = newDigest();
+        if (files.size() == 1 && files.containsKey(SCRIPT_NAME)) {
+            // a script without libraries keeps the hash of its content, so existing entries stay valid
+            digest.update(files.get(SCRIPT_NAME));
+        } else {
+            for (Map.Entry<String, byte[]> file : new TreeMap<String, byte[]>(files).entrySet()) {
+                digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(file.getValue());
+                digest.update((byte) 0);
+            }
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * @return the hex encoded SHA-256 of the UTF-8 encoded content
+     */
+    @NonNull
+    static String hash(@NonNull String content) {
+        return Util.toHexString(newDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is a required algorithm", e);
+        }
+    }
+
+    /**
+     * The most used scripts as written to nodes of a single charset.
+     */
+    private static final class Entries {
+        // the files by hash
+        final Map<String, Map<String, byte[]>> files = new LinkedHashMap<String, Map<String, byte[]>>();
+        // the former version to transfer the difference to, by hash
+        final Map<String, String> formers = new LinkedHashMap<String, String>();
+        // the hash by key of each script
+        final Map<String, String> hashes = new LinkedHashMap<String, String>();
+        final Set<String> pushed;
+
+        Entries(Map<String, Map<String, String>> scripts, Charset charset) {
+            for (Map.Entry<String, Map<String, String>> script : scripts.entrySet()) {
+                Map<String, byte[]> encoded = encode(script.getValue(), charset);
+                String hash = hash(encoded);
+                hashes.put(script.getKey(), hash);
+                files.put(hash, encoded);
+                formers.put(hash, encoded.size() > 1 ? null : getFormerVersion(script.getKey(), hash, script.getValue().get(SCRIPT_NAME)));
+            }
+            pushed = Collections.unmodifiableSet(new HashSet<String>(files.keySet()));
+        }
+    }
+
+    /**
+     * How often a script got executed.
+     */
+    private static final class Usage {
+        final String id;
+        final AtomicLong count = new AtomicLong();
+        volatile long lastUsed;
+
+        Usage(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Pushes the most used scripts to nodes coming online. Windows nodes are skipped, as the scripts on them are not executed from the cache.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            Node node = c.getNode();
+            if (node != null && !Boolean.FALSE.equals(c.isUnix())) {
+                prewarm(Collections.singletonList(node), false);
+            }
+        }
+
+        @Override
+        public void onOffline(@NonNull Computer c, @CheckForNull OfflineCause cause) {
+            // its cache might be gone when it comes back, e.g. for cloud agents
+            PREWARMED.remove(c.getName());
+        }
+    }
+
+    /**
+     * Pushes the most used scripts to all online nodes if one of them changed. Only the stores of scripts are considered, saves of other configs (e.g. Maven settings) don't change the
+     * most used scripts.
+     */
+    @Extension
+    public static final class SaveListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if ((o instanceof GlobalConfigFiles || o instanceof ScriptConfig.ScriptConfigProvider) && hotScriptsChanged()) {
+                List<Node> nodes = new ArrayList<Node>();
+                for (Computer c : Jenkins.get().getComputers()) {
+                    Node node = c.getNode();
+                    if (node != null && c.isOnline() && !Boolean.FALSE.equals(c.isUnix())) {
+                        nodes.add(node);
+                    }
+                }
+                prewarm(nodes, true);
+            }
+        }
+    }
+
+    /**
+     * Cache hit/miss counters of a single node.
+     */
+    public static final class Statistics {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong deltas = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * @return the number of scripts added by transferring only the difference to their former version
+         */
+        public long getDeltas() {
+            return deltas.get();
+        }
+    }
+
+    /**
+     * Whether an entry exists, otherwise the signature of the former version if that exists.
+     */
+    private static final class LookupResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final boolean found;
+        final ScriptDelta.Signature former;
+
+        LookupResult(boolean found, ScriptDelta.Signature former) {
+            this.found = found;
+            this.former = former;
+        }
+    }
+
+    /**
+     * Checks whether an entry exists and marks it as recently used. If it doesn't, computes the signature of the former version of the script.
+     */
+    private static final class Lookup extends MasterToSlaveFileCallable<LookupResult> {
+        private static final long serialVersionUID = 1L;
+        private final String hash;
+        private final String former;
+        private final String charset;
+
+        /**
+         * @param former  the hash of the former version, {@code null} if no signature is needed
+         * @param charset the charset the script got written with
+         */
+        Lookup(String hash, String former, String charset) {
+            this.hash = hash;
+            this.former = former;
+            this.charset = charset;
+        }
+
+        @Override
+        public LookupResult invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = new File(cache, hash);
+            if (verify(cache, hash)) {
+                // the modification time of the entry is what the eviction is based on
+                entry.setLastModified(System.currentTimeMillis());
+                return new LookupResult(true, null);
+            }
+            String base = former == null ? null : read(cache, former, charset);
+            return new LookupResult(false, base == null ? null : new ScriptDelta.Signature(base));
+        }
+    }
+
+    /**
+     * Finds the entries missing out of several ones and marks the others as recently used. For each missing entry, computes the signature of the former version of the script if requested.
+     */
+    private static final class Missing extends MasterToSlaveFileCallable<Map<String, ScriptDelta.Signature>> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> formers;
+        private final String charset;
+
+        /**
+         * @param formers the hash of the former version by hash of each entry, {@code null} if no signature is needed
+         * @param charset the charset the scripts got written with
+         */
+        Missing(Map<String, String> formers, String charset) {
+            this.formers = new LinkedHashMap<String, String>(formers);
+            this.charset = charset;
+        }
+
+        /**
+         * @return the signature of the former version, if requested and present, by hash of each missing entry
+         */
+        @Override
+        public Map<String, ScriptDelta.Signature> invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            Map<String, ScriptDelta.Signature> missing = new LinkedHashMap<String, ScriptDelta.Signature>();
+            for (Map.Entry<String, String> entry : formers.entrySet()) {
+                if (verify(cache, entry.getKey())) {
+                    new File(cache, entry.getKey()).setLastModified(System.currentTimeMillis());
+                } else {
+                    String base = entry.getValue() == null ? null : read(cache, entry.getValue(), charset);
+                    missing.put(entry.getKey(), base == null ? null : new ScriptDelta.Signature(base));
+                }
+            }
+            return missing;
+        }
+    }
+
+    /**
+     * Adds an entry from the former version of the script and the difference to it, then evicts the least recently used entries if the cache got too big.
+     */
+    private static final class Patch extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final String hash;
+        private final String former;
+        private final String charset;
+        private final ScriptDelta delta;
+        private final long maxSize;
+        private final long minAge;
+
+        Patch(String hash, String former, String charset, ScriptDelta delta, long maxSize, long minAge) {
+            this.hash = hash;
+            this.former = former;
+            this.charset = charset;
+            this.delta = delta;
+            this.maxSize = maxSize;
+            this.minAge = minAge;
+        }
+
+        /**
+         * @return {@code false} if the former version is gone or the result doesn't match, in which case the whole script has to be transferred
+         */
+        @Override
+        public Boolean invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            String base = read(cache, former, charset);
+            if (base == null) {
+                return false;
+            }
+            Map<String, byte[]> files = Collections.singletonMap(SCRIPT_NAME, delta.apply(base).getBytes(charset));
+            if (!hash(files).equals(hash)) {
+                return false;
+            }
+            Store.store(cache, hash, files);
+            Store.evict(cache, maxSize, minAge);
+            return true;
+        }
+    }
+
+    /**
+     * @return the content of the script of the entry or {@code null} if it doesn't exist or doesn't match its hash
+     */
+    @CheckForNull
+    private static String read(File cache, String hash, String charset) throws IOException, InterruptedException {
+        if (!verify(cache, hash)) {
+            return null;
+        }
+        return new String(Files.readAllBytes(new File(new File(cache, hash), SCRIPT_NAME).toPath()), charset);
+    }
+
+    /**
+     * Checks that an entry exists and that its files still match its hash. An entry not matching is deleted.
+     *
+     * @return whether the entry can be used
+     */
+    static boolean verify(File cache, String hash) throws IOException, InterruptedException {
+        File entry = new File(cache, hash);
+        if (!new File(entry, SCRIPT_NAME).isFile()) {
+            return false;
+        }
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        readFiles(entry, "", files);
+        if (hash(files).equals(hash)) {
+            return true;
+        }
+        LOGGER.log(Level.WARNING, "Script cache entry {0} got modified, deleting it", entry);
+        new FilePath(entry).deleteRecursive();
+        return false;
+    }
+
+    private static void readFiles(File dir, String prefix, Map<String, byte[]> files) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Failed to list " + dir);
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                readFiles(child, prefix + child.getName() + '/', files);
+            } else {
+                files.put(prefix + child.getName(), Files.readAllBytes(child.toPath()));
+            }
+        }
+    }
+
+    /**
+     * Makes a file or directory of the cache only accessible by the user running the agent, if the file system supports POSIX permissions.
+     */
+    private static void restrict(File file) throws IOException {
+        Path path = file.toPath();
+        if (Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(file.isDirectory() ? "rwx------" : "r--------"));
+        }
+    }
+
+    /**
+     * Adds new entries and evicts the least recently used ones if the cache got too big. Entries already present are left as they are.
+     */
+    private static final class Store extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, Map<String, byte[]>> scripts;
+        private final long maxSize;
+        private final long minAge;
+
+        /**
+         * @param scripts the files of the scripts to add by path relative to the entry, keyed by hash
+         */
+        Store(Map<String, Map<String, byte[]>> scripts, long maxSize, long minAge) {
+            this.scripts = new LinkedHashMap<String, Map<String, byte[]>>(scripts);
+            this.maxSize = maxSize;
+            this.minAge = minAge;
+        }
+
+        @Override
+        public Void invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            for (Map.Entry<String, Map<String, byte[]>> script : scripts.entrySet()) {
+                if (!verify(cache, script.getKey())) {
+                    store(cache, script.getKey(), script.getValue());
+                }
+            }
+            evict(cache, maxSize, minAge);
+            return null;
+        }
+
+        private static void store(File cache, String hash, Map<String, byte[]> files) throws IOException, InterruptedException {
+            File entry = new File(cache, hash);
+            if (!cache.isDirectory()) {
+                if (!cache.mkdirs() && !cache.isDirectory()) {
+                    throw new IOException("Failed to create " + cache);
+                }
+                restrict(cache);
+            }
+            // write to a private directory first, so a concurrent build never sees a partially written script
+            File tmp = new File(cache, hash + ".tmp-" + UUID.randomUUID());
+            if (!tmp.mkdirs()) {
+                throw new IOException("Failed to create " + tmp);
+            }
+            restrict(tmp);
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                File target = new File(tmp, file.getKey());
+                if (!target.getParentFile().isDirectory()) {
+                    if (!target.getParentFile().mkdirs()) {
+                        throw new IOException("Failed to create " + target.getParentFile());
+                    }
+                    restrict(target.getParentFile());
+                }
+                Files.write(target.toPath(), file.getValue());
+                restrict(target);
+            }
+            if (!tmp.renameTo(entry)) {
+                // another build added the same script in the meantime
+                new FilePath(tmp).deleteRecursive();
+                if (!entry.isDirectory()) {
+                    throw new IOException("Failed to move " + tmp + " to " + entry);
+                }
+            }
+        }
+
+        private static void evict(File cache, long maxSize, long minAge) throws IOException, InterruptedException {
+            File[] entries = cache.listFiles();
+            if (entries == null) {
+                return;
+            }
+            List<File> candidates = new ArrayList<File>(Arrays.asList(entries));
+            Collections.sort(candidates, new Comparator<File>() {
+                public int compare(File o1, File o2) {
+                    return Long.compare(o1.lastModified(), o2.lastModified());
+                }
+            });
+            long size = 0;
+            for (File candidate : candidates) {
+                size += sizeOf(candidate);
+            }
+            long threshold = System.currentTimeMillis() - minAge;
+            for (File candidate : candidates) {
+                if (size <= maxSize || candidate.lastModified() > threshold) {
+                    break;
+                }
+                long candidateSize = sizeOf(candidate);
+                new FilePath(candidate).deleteRecursive();
+                size -= candidateSize;
+                LOGGER.log(Level.FINE, "Evicted {0} from script cache", candidate.getName());
+            }
+        }
+
+        private static long sizeOf(File file) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return file.length();
+            }
+            long size = 0;
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+            return size;
+        }
+    }
+}
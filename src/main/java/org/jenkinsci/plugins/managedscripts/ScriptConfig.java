@@ -3,11 +3,13 @@
  */
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import jenkins.model.Jenkins;
@@ -18,30 +20,94 @@ import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.jenkinsci.plugins.configfiles.maven.MavenSettingsConfig;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * @author domi
  * 
  */
-public class ScriptConfig extends Config {
+public class ScriptConfig extends ManagedScriptConfig {
 
-    public final List<Arg> args;
+    /**
+     * the directory next to the script the libraries are placed in
+     */
+    public static final String LIBRARY_DIR = "lib";
+
+    // the ids of the scripts to place next to this one, null if there are none
+    private String[] libraryIds;
+
+    // the parsed hash-bang line, published by the volatile flag
+    private transient InterpreterLine interpreterLine;
+    private transient volatile boolean interpreterLineParsed;
 
     @DataBoundConstructor
     public ScriptConfig(String id, String name, String comment, String content, List<Arg> args) {
-        super(id, name, comment, content);
+        super(id, name, comment, content, args);
+        getInterpreterLine();
+    }
+
+    /**
+     * @return the interpreter given by the hash-bang line of the script or {@code null} if there is none. The line is only parsed once per config (re)load.
+     */
+    @CheckForNull
+    public InterpreterLine getInterpreterLine() {
+        if (!interpreterLineParsed) {
+            // new config or loaded from disk
+            interpreterLine = content == null ? null : InterpreterLine.parse(content);
+            interpreterLineParsed = true;
+        }
+        return interpreterLine;
+    }
+
+    /**
+     * @return the ids of the scripts made available to this one as libraries, in order
+     */
+    @NonNull
+    public List<String> getLibraryIds() {
+        if (libraryIds == null) {
+            return Collections.emptyList();
+        }
+        List<String> ids = new ArrayList<String>(libraryIds.length);
+        Collections.addAll(ids, libraryIds);
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * @return the libraries as required by the form
+     */
+    @NonNull
+    public List<Library> getLibraries() {
+        List<Library> libraries = new ArrayList<Library>();
+        for (String libraryId : getLibraryIds()) {
+            libraries.add(new Library(libraryId));
+        }
+        return libraries;
+    }
 
-        if (args != null) {
-            List<Arg> filteredArgs = new ArrayList<ScriptConfig.Arg>();
-            for (Arg arg : args) {
-                if (arg.name != null && arg.name.trim().length() > 0) {
-                    filteredArgs.add(arg);
+    /**
+     * @param libraries other scripts to place in the {@link #LIBRARY_DIR} next to this one whenever it gets executed, e.g. shared functions it sources
+     */
+    @DataBoundSetter
+    public void setLibraries(List<Library> libraries) {
+        List<String> ids = new ArrayList<String>();
+        if (libraries != null) {
+            for (Library library : libraries) {
+                if (library != null && library.id != null && library.id.trim().length() > 0 && !library.id.equals(id)) {
+                    ids.add(library.id.trim().intern());
                 }
             }
-            this.args = filteredArgs;
-        } else {
-            this.args = null;
         }
+        this.libraryIds = ids.isEmpty() ? null : ids.toArray(new String[ids.size()]);
+    }
+
+    /**
+     * @param name the name of a library config
+     * @return the name of the file the library is written to, the name with all characters not safe in file names replaced
+     */
+    @NonNull
+    public static String getLibraryFileName(String name) {
+        String fileName = name == null ? "" : name.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+        return fileName.isEmpty() || fileName.startsWith(".") ? "_" + fileName : fileName;
     }
 
     @Override
@@ -49,12 +115,29 @@ public class ScriptConfig extends Config {
         return Jenkins.get().getDescriptorByType(ScriptConfigProvider.class);
     }
 
-    public static class Arg implements Serializable {
-        public final String name;
+    @Override
+    protected Arg newArg(String name) {
+        return new Arg(name);
+    }
 
+    public static class Arg extends ManagedScriptConfig.Arg {
         @DataBoundConstructor
         public Arg(final String name) {
-            this.name = name;
+            super(name);
+        }
+    }
+
+    /**
+     * A script made available to another one, only exists to bind the form.
+     */
+    public static class Library implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String id;
+
+        @DataBoundConstructor
+        public Library(final String id) {
+            this.id = id;
         }
     }
 
@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between two versions of a script, in the manner of rsync.
+ * <p>
+ * The node holding the former version splits it into blocks and sends a weak rolling checksum and a strong checksum per block (see {@link Signature}). The controller slides a window over the
+ * new version and replaces every block found in the former version by a reference to it, only the remaining characters are transferred. The node puts the new version together from the
+ * references and these characters. Scripts are compared as characters, not bytes, so the charset of the node doesn't matter.
+ */
+final class ScriptDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int MIN_BLOCK_SIZE = 1024;
+
+    private final int blockSize;
+    // the index of a block to copy if not negative, otherwise the negated number of characters to take from the literals
+    private final int[] ops;
+    private final String literals;
+
+    private ScriptDelta(int blockSize, int[] ops, String literals) {
+        this.blockSize = blockSize;
+        this.ops = ops;
+        this.literals = literals;
+    }
+
+    /**
+     * @return the number of characters to transfer besides the block references
+     */
+    int getLiteralLength() {
+        return literals.length();
+    }
+
+    /**
+     * Computes the difference of a script to the former version a node holds.
+     *
+     * @param signature the signature of the former version
+     * @param target    the new version
+     * @return the difference
+     */
+    static ScriptDelta diff(Signature signature, String target) {
+        int blockSize = signature.blockSize;
+        Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < signature.weak.length; i++) {
+            List<Integer> candidates = blocks.get(signature.weak[i]);
+            if (candidates == null) {
+                candidates = new ArrayList<Integer>(1);
+                blocks.put(signature.weak[i], candidates);
+            }
+            candidates.add(i);
+        }
+
+        List<Integer> ops = new ArrayList<Integer>();
+        StringBuilder literals = new StringBuilder();
+        int literalStart = 0;
+        int i = 0;
+        int a = 0;
+        int b = 0;
+        boolean rolled = false;
+        while (i + blockSize <= target.length()) {
+            if (!rolled) {
+                a = 0;
+                b = 0;
+                for (int k = 0; k < blockSize; k++) {
+                    a += target.charAt(i + k);
+                    b += (blockSize - k) * target.charAt(i + k);
+                }
+                rolled = true;
+            }
+            int match = -1;
+            List<Integer> candidates = blocks.get(weak(a, b));
+            if (candidates != null) {
+                long strong = strong(target, i, blockSize);
+                for (int candidate : candidates) {
+                    if (signature.strong[candidate] == strong) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                if (literalStart < i) {
+                    literals.append(target, literalStart, i);
+                    ops.add(literalStart - i);
+                }
+                ops.add(match);
+                i += blockSize;
+                literalStart = i;
+                rolled = false;
+            } else {
+                if (i + blockSize < target.length()) {
+                    char out = target.charAt(i);
+                    char in = target.charAt(i + blockSize);
+                    a += in - out;
+                    b += a - blockSize * out;
+                }
+                i++;
+            }
+        }
+        if (literalStart < target.length()) {
+            literals.append(target, literalStart, target.length());
+            ops.add(literalStart - target.length());
+        }
+
+        int[] result = new int[ops.size()];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = ops.get(k);
+        }
+        return new ScriptDelta(blockSize, result, literals.toString());
+    }
+
+    /**
+     * Puts the new version of a script together.
+     *
+     * @param base the former version the difference was computed against
+     * @return the new version
+     */
+    String apply(String base) throws IOException {
+        StringBuilder sb = new StringBuilder(base.length() + literals.length());
+        int literal = 0;
+        for (int op : ops) {
+            if (op >= 0) {
+                int start = op * blockSize;
+                if (start + blockSize > base.length()) {
+                    throw new IOException("block " + op + " is out of range");
+                }
+                sb.append(base, start, start + blockSize);
+            } else {
+                sb.append(literals, literal, literal - op);
+                literal -= op;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int weak(int a, int b) {
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    private static long strong(String s, int start, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(s.substring(start, start + length).getBytes(StandardCharsets.UTF_8));
+            long result = 0;
+            for (int k = 0; k < 8; k++) {
+                result = result << 8 | (hash[k] & 0xff);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("MD5 is a required algorithm", e);
+        }
+    }
+
+    /**
+     * The checksums of the blocks of a script. A trailing partial block is left out, it is transferred as literal.
+     */
+    static final class Signature implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int blockSize;
+        final int[] weak;
+        final long[] strong;
+
+        /**
+         * @param base the script to compute the checksums of
+         */
+        Signature(String base) {
+            this.blockSize = Math.max(MIN_BLOCK_SIZE, (int) Math.sqrt(base.length()));
+            int count = base.length() / blockSize;
+            this.weak = new int[count];
+            this.strong = new long[count];
+            for (int i = 0; i < count; i++) {
+                int a = 0;
+                int b = 0;
+                for (int k = 0; k < blockSize; k++) {
+                    char c = base.charAt(i * blockSize + k);
+                    a += c;
+                    b += (blockSize - k) * c;
+                }
+                weak[i] = weak(a, b);
+                strong[i] = strong(base, i * blockSize, blockSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import antlr.ANTLRException;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.Tasks;
+import hudson.security.ACL;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.FormValidation;
+import hudson.util.NamedThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+import org.springframework.security.core.Authentication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes a managed script on every node matching a label expression, with a bounded number of nodes at a time.
+ * <p>
+ * The nodes are not allocated through the queue, the script is executed directly in the root directory of each online node (see {@link AgentScriptRunner}) while the build keeps running on
+ * its own executor. The output of each node is written to the build log line by line, prefixed with the name of the node. The step fails if the script fails on any of the nodes, after it
+ * was executed on all of them.
+ * <p>
+ * Arguments are expanded once, in the context of the build. The interpreter is determined for each node and the scripts are executed with the environment of the node they are running on.
+ * The libraries of the script (see {@link ScriptConfig#getLibraryIds()}) are placed next to it on each node. The output limits and the compression of the script apply to each node on its
+ * own, scripts piping themselves to the interpreter are refused, as every node is passed its script as a file.
+ * <p>
+ * As the queue is bypassed, the script is only executed on nodes which accept tasks and on which the user the build runs as (see {@link Tasks#getAuthenticationOf2}) has the permission
+ * {@link Computer#BUILD}. Builds running as {@code SYSTEM}, as they do unless an authenticator is configured for the queue, are refused, just like the built-in node is never used.
+ */
+public class ScriptFanOutBuildStep extends Builder implements SimpleBuildStep {
+
+    private static final int DEFAULT_MAX_PARALLEL = 10;
+
+    private final ScriptBuildStep script;
+    private final String label;
+    private int maxParallel = DEFAULT_MAX_PARALLEL;
+
+    @DataBoundConstructor
+    public ScriptFanOutBuildStep(ScriptBuildStep script, String label) {
+        this.script = script;
+        this.label = Util.fixEmptyAndTrim(label);
+    }
+
+    public ScriptBuildStep getScript() {
+        return script;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getMaxParallel() {
+        return maxParallel;
+    }
+
+    /**
+     * @param maxParallel the maximum number of nodes to execute the script on at the same time
+     */
+    @DataBoundSetter
+    public void setMaxParallel(int maxParallel) {
+        this.maxParallel = maxParallel > 0 ? maxParallel : DEFAULT_MAX_PARALLEL;
+    }
+
+    @Override
+    public void perform(@NonNull Run<?, ?> build, @NonNull FilePath workspace, @NonNull EnvVars env, @NonNull Launcher launcher, @NonNull TaskListener listener) throws InterruptedException, IOException {
+        final String buildStepId = script.getBuildStepId();
+        long start = System.nanoTime();
+        final Config config = ConfigIndex.get(build, buildStepId, Config.class);
+        if (config == null) {
+            throw new AbortException(Messages.config_does_not_exist(buildStepId));
+        }
+        ScriptMetrics.get(buildStepId).lookup.recordSince(start);
+        if (label == null) {
+            throw new AbortException("no label expression given");
+        }
+        try {
+            Label.parseExpression(label);
+        } catch (ANTLRException e) {
+            throw new AbortException("invalid label expression '" + label + "': " + e.getMessage());
+        }
+
+        if (script.isStdin()) {
+            throw new AbortException("script '" + config.name + "' can't be piped to the interpreter on multiple nodes, uncheck the option");
+        }
+
+        final Map<String, String> libraries = ScriptBuildStep.getLibraries(build, config);
+        final OutputPolicy outputPolicy = new OutputPolicy(script.getOutputLimit() * 1024L, script.getOutputRateLimit() * 1024L);
+        final boolean compress = script.isCompress();
+        final ArgumentListBuilder args = new ArgumentListBuilder();
+        try {
+            script.addArguments(args, build, workspace, listener);
+        } catch (MacroEvaluationException e) {
+            e.printStackTrace(listener.fatalError("Caught exception while loading script '" + config.name + "'"));
+            throw new AbortException("script '" + config.name + "' failed");
+        }
+
+        if (!(build.getParent() instanceof Queue.Task)) {
+            throw new AbortException("can't execute a script on other nodes for " + build.getParent().getFullName());
+        }
+        Queue.Task task = (Queue.Task) build.getParent();
+        Authentication auth = Tasks.getAuthenticationOf2(task);
+        if (ACL.SYSTEM_USERNAME.equals(auth.getName())) {
+            throw new AbortException("refusing to execute a script on other nodes for a build running as " + ACL.SYSTEM_USERNAME + ", configure the user builds run as in the global security settings");
+        }
+
+        final PrintStream logger = listener.getLogger();
+        Map<String, String> failures = new LinkedHashMap<String, String>();
+        Map<String, Future<Integer>> results = new LinkedHashMap<String, Future<Integer>>();
+        List<Node> targets = new ArrayList<Node>();
+        for (Node node : Jenkins.get().getLabel(label).getNodes()) {
+            if (node instanceof Jenkins) {
+                logger.println("skipping the built-in node");
+            } else {
+                targets.add(node);
+            }
+        }
+        if (targets.isEmpty()) {
+            throw new AbortException("no agent matches the label expression '" + label + "'");
+        }
+        logger.println("executing script '" + config.name + "' on " + targets.size() + " nodes, " + maxParallel + " at a time");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxParallel, targets.size()), new NamedThreadFactory("ScriptFanOutBuildStep " + build.getExternalizableId()));
+        try {
+            for (final Node node : targets) {
+                final String nodeName = node.getDisplayName();
+                final Computer computer = node.toComputer();
+                final FilePath root = node.getRootPath();
+                if (computer == null || root == null || !computer.isOnline()) {
+                    failures.put(nodeName, "offline");
+                    continue;
+                }
+                if (!node.isAcceptingTasks() || !computer.isAcceptingTasks()) {
+                    failures.put(nodeName, "not accepting tasks");
+                    continue;
+                }
+                if (!node.getACL().hasPermission2(auth, Computer.BUILD)) {
+                    failures.put(nodeName, auth.getName() + " is missing the permission " + Computer.BUILD.getId());
+                    continue;
+                }
+                results.put(nodeName, executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        // e.g. the shell of a Windows node differs
+                        ArgumentListBuilder interpreter = new ArgumentListBuilder();
+                        ScriptBuildStep.addInterpreter(interpreter, config, root.getChannel());
+                        AgentScriptRunner.Invocation invocation = new AgentScriptRunner.Invocation(config.name, config.content, ".sh", interpreter.toList(), "%s", args.toList(),
+                                libraries);
+                        EnvVars nodeEnv = computer.getEnvironment();
+                        nodeEnv.overrideAll(computer.buildEnvironment(TaskListener.NULL));
+                        List<AgentScriptRunner.Result> result;
+                        try (OutputStream out = new NodePrefixedOutputStream(logger, nodeName)) {
+                            result = new AgentScriptRunner(Collections.singletonList(invocation), nodeEnv, out, outputPolicy, compress).execute(root);
+                        }
+                        ScriptMetrics metrics = ScriptMetrics.get(buildStepId);
+                        metrics.run.record(result.get(0).durationNanos);
+                        metrics.recordExitCode(result.get(0).exitCode);
+                        return result.get(0).exitCode;
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            for (Map.Entry<String, Future<Integer>> result : results.entrySet()) {
+                try {
+                    int r = result.getValue().get();
+                    if (r != 0) {
+                        failures.put(result.getKey(), "exit code " + r);
+                    }
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("[" + result.getKey() + "] failed"));
+                    failures.put(result.getKey(), String.valueOf(e.getCause()));
+                }
+            }
+        } finally {
+            // stops the remaining nodes if the build got aborted
+            executor.shutdownNow();
+        }
+
+        logger.println("script '" + config.name + "' succeeded on " + (targets.size() - failures.size()) + " of " + targets.size() + " nodes");
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            logger.println("  " + failure.getKey() + ": " + failure.getValue());
+        }
+        if (!failures.isEmpty()) {
+            throw new AbortException("script '" + config.name + "' failed on " + failures.size() + " nodes");
+        }
+    }
+
+    /**
+     * Writes the output of a node to the build log, each complete line at once and prefixed with the name of the node.
+     */
+    private static final class NodePrefixedOutputStream extends LineTransformationOutputStream {
+        private final PrintStream logger;
+        private final byte[] prefix;
+
+        NodePrefixedOutputStream(PrintStream logger, String nodeName) {
+            this.logger = logger;
+            this.prefix = ("[" + nodeName + "] ").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (logger) {
+                logger.write(prefix, 0, prefix.length);
+                logger.write(b, 0, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            logger.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the build log stays open
+            forceEol();
+            flush();
+        }
+    }
+
+    /**
+     * Descriptor for {@link ScriptFanOutBuildStep}.
+     */
+    @Extension(ordinal = 40)
+    @Symbol("managedScriptFanOut")
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.fanout_buildstep_name();
+        }
+
+        @POST
+        public FormValidation doCheckLabel(@AncestorInPath Item item, @QueryParameter String value) {
+            if (item == null) {
+                Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            } else {
+                item.checkPermission(Item.CONFIGURE);
+            }
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("a label expression is required");
+            }
+            try {
+                Label.parseExpression(value);
+            } catch (ANTLRException e) {
+                return FormValidation.error("invalid label expression: " + e.getMessage());
+            }
+            int count = 0;
+            for (Node node : Jenkins.get().getLabel(value).getNodes()) {
+                if (!(node instanceof Jenkins)) {
+                    count++;
+                }
+            }
+            return count == 0 ? FormValidation.warning("no agent matches this label expression") : FormValidation.ok(count + " agents match this label expression");
+        }
+
+        public FormValidation doCheckMaxParallel(@QueryParameter int value) {
+            return value > 0 ? FormValidation.ok() : FormValidation.error("must be a positive number");
+        }
+    }
+}
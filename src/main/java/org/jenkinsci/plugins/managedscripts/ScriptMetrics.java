@@ -0,0 +1,320 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Execution metrics of a single managed script, collected by all build steps referencing it.
+ * <p>
+ * All counters are lock free, so recording does not add contention between concurrent builds. Each instance is also registered as {@link ScriptMetricsMXBean} with the platform MBean server.
+ * Metrics are only created for configs that exist and are dropped again when their config got deleted.
+ */
+public final class ScriptMetrics implements ScriptMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptMetrics.class.getName());
+
+    private static final ConcurrentMap<String, ScriptMetrics> METRICS = new ConcurrentHashMap<String, ScriptMetrics>();
+
+    private final String configId;
+    /**
+     * resolving the config of the script
+     */
+    final Timer lookup = new Timer();
+    /**
+     * making the script available on the execution host
+     */
+    final Timer transfer = new Timer();
+    /**
+     * starting the interpreter process
+     */
+    final Timer launch = new Timer();
+    /**
+     * wall-clock time of the script from start to exit
+     */
+    final Timer run = new Timer();
+    private final ConcurrentMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private ScriptMetrics(String configId) {
+        this.configId = configId;
+    }
+
+    /**
+     * @param configId the id of the managed script
+     * @return the metrics of the given script, created on first access
+     */
+    @NonNull
+    public static ScriptMetrics get(@NonNull String configId) {
+        ScriptMetrics metrics = METRICS.get(configId);
+        if (metrics == null) {
+            ScriptMetrics created = new ScriptMetrics(configId);
+            metrics = METRICS.putIfAbsent(configId, created);
+            if (metrics == null) {
+                metrics = created;
+                register(created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of all scripts executed since startup, keyed by config id
+     */
+    @NonNull
+    public static Map<String, ScriptMetrics> all() {
+        return Collections.unmodifiableMap(METRICS);
+    }
+
+    /**
+     * Drops the metrics of all scripts whose config doesn't exist anymore, in the background.
+     */
+    static void pruneLater() {
+        jenkins.util.Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+                    prune();
+                }
+            }
+        });
+    }
+
+    private static void prune() {
+        if (METRICS.isEmpty()) {
+            return;
+        }
+        Set<String> deleted = new HashSet<String>(METRICS.keySet());
+        for (Config config : GlobalConfigFiles.get().getConfigs()) {
+            deleted.remove(config.id);
+        }
+        // configs stored in folders, any item group might be one
+        for (Item item : Jenkins.get().allItems(Item.class)) {
+            if (deleted.isEmpty()) {
+                break;
+            }
+            if (item instanceof ItemGroup) {
+                for (Iterator<String> it = deleted.iterator(); it.hasNext(); ) {
+                    if (ConfigFiles.getByIdOrNull((ItemGroup<?>) item, it.next()) != null) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        for (String configId : deleted) {
+            ScriptMetrics removed = METRICS.remove(configId);
+            if (removed != null) {
+                unregister(removed);
+            }
+        }
+    }
+
+    private static ObjectName getObjectName(ScriptMetrics metrics) throws JMException {
+        return new ObjectName("org.jenkinsci.plugins.managedscripts:type=ManagedScript,id=" + ObjectName.quote(metrics.configId));
+    }
+
+    private static void register(ScriptMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, getObjectName(metrics));
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Failed to register MBean for " + metrics.configId, e);
+        }
+    }
+
+    private static void unregister(ScriptMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(metrics));
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Failed to unregister MBean for " + metrics.configId, e);
+        }
+    }
+
+    /**
+     * @param exitCode the exit code the script terminated with
+     */
+    void recordExitCode(int exitCode) {
+        AtomicLong count = exitCodes.get(exitCode);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = exitCodes.putIfAbsent(exitCode, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public String getConfigId() {
+        return configId;
+    }
+
+    @Override
+    public long getRuns() {
+        return run.getCount();
+    }
+
+    @Override
+    public long getRunTotalMillis() {
+        return run.getTotalMillis();
+    }
+
+    @Override
+    public double getRunMeanMillis() {
+        return run.getMeanMillis();
+    }
+
+    @Override
+    public long getRunMaxMillis() {
+        return run.getMaxMillis();
+    }
+
+    @Override
+    public long getRun95thPercentileMillis() {
+        return run.getPercentileMillis(0.95);
+    }
+
+    @Override
+    public double getLookupMeanMillis() {
+        return lookup.getMeanMillis();
+    }
+
+    @Override
+    public double getTransferMeanMillis() {
+        return transfer.getMeanMillis();
+    }
+
+    @Override
+    public double getLaunchMeanMillis() {
+        return launch.getMeanMillis();
+    }
+
+    @Override
+    public Map<Integer, Long> getExitCodes() {
+        Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : exitCodes.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * @return the metrics as JSON, as served by {@link ManagedScriptsAction#doMetrics}
+     */
+    @NonNull
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("lookup", lookup.toJSON());
+        json.put("transfer", transfer.toJSON());
+        json.put("launch", launch.toJSON());
+        json.put("run", run.toJSON());
+        JSONObject codes = new JSONObject();
+        for (Map.Entry<Integer, Long> entry : getExitCodes().entrySet()) {
+            codes.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        json.put("exitCodes", codes);
+        return json;
+    }
+
+    /**
+     * Lock free timer with a histogram of power of two millisecond buckets.
+     */
+    static final class Timer {
+        private static final int BUCKETS = 32;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        // bucket i counts durations below 2^i milliseconds (and at least 2^(i-1))
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        /**
+         * @param start the {@link System#nanoTime()} the measured operation started at
+         */
+        void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis)));
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+        }
+
+        double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        /**
+         * @return the upper bound of the histogram bucket holding the given percentile
+         */
+        long getPercentileMillis(double percentile) {
+            long n = 0;
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram.get(i);
+                n += buckets[i];
+            }
+            long threshold = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(1L << i, getMaxMillis());
+                }
+            }
+            return 0;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("totalMillis", getTotalMillis());
+            json.put("meanMillis", getMeanMillis());
+            json.put("maxMillis", getMaxMillis());
+            json.put("p95Millis", getPercentileMillis(0.95));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import java.util.Map;
+
+/**
+ * JMX view on the {@link ScriptMetrics} of a single managed script, all durations in milliseconds.
+ */
+public interface ScriptMetricsMXBean {
+
+    String getConfigId();
+
+    long getRuns();
+
+    long getRunTotalMillis();
+
+    double getRunMeanMillis();
+
+    long getRunMaxMillis();
+
+    long getRun95thPercentileMillis();
+
+    double getLookupMeanMillis();
+
+    double getTransferMeanMillis();
+
+    double getLaunchMeanMillis();
+
+    Map<Integer, Long> getExitCodes();
+}
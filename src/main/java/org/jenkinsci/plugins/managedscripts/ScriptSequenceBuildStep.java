@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.ArgumentListBuilder;
+import jenkins.tasks.SimpleBuildStep;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Executes several managed scripts one after the other on the execution host.
+ * <p>
+ * Equivalent to a series of {@link ScriptBuildStep}s, but all scripts are resolved up front and shipped to the execution host with a single remote call, which executes them there and reports
+ * all exit codes back at once (see {@link AgentScriptRunner}). The sequence stops at the first failing script.
+ * <p>
+ * Only plain scripts can be batched like this. If the launcher is decorated (e.g. by a build wrapper) or a script pipes itself to the interpreter, limits or compresses its output or has
+ * libraries, every script is performed as its own {@link ScriptBuildStep} instead, so none of these is lost.
+ */
+public class ScriptSequenceBuildStep extends Builder implements SimpleBuildStep {
+
+    private final List<ScriptBuildStep> scripts;
+
+    @DataBoundConstructor
+    public ScriptSequenceBuildStep(List<ScriptBuildStep> scripts) {
+        this.scripts = scripts == null ? Collections.<ScriptBuildStep>emptyList() : new ArrayList<ScriptBuildStep>(scripts);
+    }
+
+    public List<ScriptBuildStep> getScripts() {
+        return Collections.unmodifiableList(scripts);
+    }
+
+    @Override
+    public void perform(@NonNull Run<?, ?> build, @NonNull FilePath workspace, @NonNull EnvVars env, @NonNull Launcher launcher, @NonNull TaskListener listener) throws InterruptedException, IOException {
+        if (!AgentScriptRunner.canReplace(launcher) || !isPlain(build)) {
+            for (ScriptBuildStep script : scripts) {
+                // aborts on the first failing script
+                script.perform(build, workspace, env, launcher, listener);
+            }
+            return;
+        }
+
+        List<AgentScriptRunner.Invocation> invocations = new ArrayList<AgentScriptRunner.Invocation>();
+        for (ScriptBuildStep script : scripts) {
+            long start = System.nanoTime();
+            Config config = ConfigIndex.get(build, script.getBuildStepId(), Config.class);
+            if (config == null) {
+                throw new AbortException(Messages.config_does_not_exist(script.getBuildStepId()));
+            }
+            ScriptMetrics.get(script.getBuildStepId()).lookup.recordSince(start);
+            ArgumentListBuilder interpreter = new ArgumentListBuilder();
+            ScriptBuildStep.addInterpreter(interpreter, config, workspace.getChannel());
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            try {
+                script.addArguments(args, build, workspace, listener);
+            } catch (MacroEvaluationException e) {
+                e.printStackTrace(listener.fatalError("Caught exception while loading script '" + config.name + "'"));
+                throw new AbortException("script '" + config.name + "' failed");
+            }
+            invocations.add(new AgentScriptRunner.Invocation(config.name, config.content, ".sh", interpreter.toList(), "%s", args.toList()));
+        }
+
+        List<AgentScriptRunner.Result> results = new AgentScriptRunner(invocations, env, listener.getLogger()).execute(workspace);
+
+        for (int i = 0; i < results.size(); i++) {
+            AgentScriptRunner.Result result = results.get(i);
+            ScriptMetrics metrics = ScriptMetrics.get(scripts.get(i).getBuildStepId());
+            metrics.run.record(result.durationNanos);
+            metrics.recordExitCode(result.exitCode);
+            if (result.exitCode != 0) {
+                throw new AbortException("script '" + invocations.get(i).name + "' returned exit code " + result.exitCode);
+            }
+        }
+    }
+
+    /**
+     * @return whether all scripts can be executed as they are, i.e. none of them needs more than its content, its interpreter and its arguments
+     */
+    private boolean isPlain(Run<?, ?> build) {
+        for (ScriptBuildStep script : scripts) {
+            if (script.isStdin() || script.getOutputLimit() > 0 || script.getOutputRateLimit() > 0 || script.isCompress()) {
+                return false;
+            }
+            Config config = ConfigIndex.get(build, script.getBuildStepId(), Config.class);
+            if (config instanceof ScriptConfig && !((ScriptConfig) config).getLibraryIds().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Descriptor for {@link ScriptSequenceBuildStep}.
+     */
+    @Extension(ordinal = 45)
+    @Symbol("managedScriptSequence")
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.sequence_buildstep_name();
+        }
+    }
+}
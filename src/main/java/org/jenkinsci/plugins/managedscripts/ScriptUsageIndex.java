@@ -0,0 +1,306 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Item;
+import hudson.model.Project;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.tasks.Builder;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reverse index of the jobs referencing each managed script, through {@link ScriptBuildStep}, {@link WinBatchBuildStep}, {@link PowerShellBuildStep} and the steps wrapping them.
+ * <p>
+ * Finding the jobs using a script would otherwise mean to walk the builders of every single job. The index is built once in the background when all jobs got loaded and is then kept up to date
+ * by the {@link ItemListener} callbacks for created, copied, updated, moved and deleted jobs, each only looking at the job concerned. Pipelines are not covered, the scripts they use are only
+ * known when they run.
+ */
+public final class ScriptUsageIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptUsageIndex.class.getName());
+
+    // full names of the referencing jobs by script id, guarded by the class
+    private static final Map<String, Set<String>> JOBS_BY_SCRIPT = new HashMap<String, Set<String>>();
+
+    // script ids by full name of the referencing job, guarded by the class
+    private static final Map<String, Set<String>> SCRIPTS_BY_JOB = new HashMap<String, Set<String>>();
+
+    private static volatile boolean ready;
+
+    private ScriptUsageIndex() {
+    }
+
+    /**
+     * @return whether all jobs got indexed since startup, until then the results are incomplete
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @param id the id of a script
+     * @return the full names of the jobs referencing the script, sorted
+     */
+    @NonNull
+    public static synchronized List<String> getJobs(@NonNull String id) {
+        Set<String> jobs = JOBS_BY_SCRIPT.get(id);
+        return jobs == null ? Collections.<String>emptyList() : new ArrayList<String>(new TreeSet<String>(jobs));
+    }
+
+    /**
+     * @return the full names of the referencing jobs by script id, both sorted
+     */
+    @NonNull
+    public static synchronized Map<String, List<String>> getAll() {
+        Map<String, List<String>> result = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, Set<String>> entry : JOBS_BY_SCRIPT.entrySet()) {
+            result.put(entry.getKey(), new ArrayList<String>(new TreeSet<String>(entry.getValue())));
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the scripts referenced by the given job.
+     */
+    private static synchronized void update(String fullName, Set<String> ids) {
+        remove(fullName);
+        if (ids.isEmpty()) {
+            return;
+        }
+        SCRIPTS_BY_JOB.put(fullName, ids);
+        for (String id : ids) {
+            Set<String> jobs = JOBS_BY_SCRIPT.get(id);
+            if (jobs == null) {
+                jobs = new LinkedHashSet<String>();
+                JOBS_BY_SCRIPT.put(id, jobs);
+            }
+            jobs.add(fullName);
+        }
+    }
+
+    private static synchronized void remove(String fullName) {
+        Set<String> ids = SCRIPTS_BY_JOB.remove(fullName);
+        if (ids == null) {
+            return;
+        }
+        for (String id : ids) {
+            Set<String> jobs = JOBS_BY_SCRIPT.get(id);
+            if (jobs != null) {
+                jobs.remove(fullName);
+                if (jobs.isEmpty()) {
+                    JOBS_BY_SCRIPT.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the given job and, in case it is a folder, all jobs within.
+     */
+    private static synchronized void removeAll(String fullName) {
+        remove(fullName);
+        String prefix = fullName + '/';
+        for (String job : new ArrayList<String>(SCRIPTS_BY_JOB.keySet())) {
+            if (job.startsWith(prefix)) {
+                remove(job);
+            }
+        }
+    }
+
+    private static void index(Item item) {
+        if (item instanceof Project) {
+            update(item.getFullName(), getScriptIds((Project<?, ?>) item));
+        }
+    }
+
+    /**
+     * @param project the job to look at
+     * @return the ids of the scripts the builders of the job reference
+     */
+    @NonNull
+    static Set<String> getScriptIds(@NonNull Project<?, ?> project) {
+        Set<String> ids = new LinkedHashSet<String>();
+        for (Builder builder : project.getBuildersList()) {
+            if (builder instanceof ScriptBuildStep) {
+                add(ids, ((ScriptBuildStep) builder).getBuildStepId());
+            } else if (builder instanceof WinBatchBuildStep) {
+                add(ids, ((WinBatchBuildStep) builder).getBuildStepId());
+            } else if (builder instanceof PowerShellBuildStep) {
+                add(ids, ((PowerShellBuildStep) builder).getBuildStepId());
+            } else if (builder instanceof ScriptSequenceBuildStep) {
+                for (ScriptBuildStep script : ((ScriptSequenceBuildStep) builder).getScripts()) {
+                    add(ids, script.getBuildStepId());
+                }
+            } else if (builder instanceof ScriptFanOutBuildStep && ((ScriptFanOutBuildStep) builder).getScript() != null) {
+                add(ids, ((ScriptFanOutBuildStep) builder).getScript().getBuildStepId());
+            }
+        }
+        return ids;
+    }
+
+    private static void add(Set<String> ids, @CheckForNull String id) {
+        if (id != null && !id.isEmpty()) {
+            ids.add(id);
+        }
+    }
+
+    /**
+     * The index as served below {@code /managed-scripts/usages}.
+     */
+    @ExportedBean
+    public static final class Usages {
+
+        public Api getApi() {
+            return new Api(this);
+        }
+
+        @Exported
+        public boolean isReady() {
+            return ScriptUsageIndex.isReady();
+        }
+
+        /**
+         * @return the scripts referenced by any job, sorted by id
+         */
+        @Exported
+        public List<Usage> getScripts() {
+            List<Usage> scripts = new ArrayList<Usage>();
+            for (Map.Entry<String, List<String>> entry : getAll().entrySet()) {
+                scripts.add(new Usage(entry.getKey(), entry.getValue()));
+            }
+            return scripts;
+        }
+
+        /**
+         * Serves a single script below {@code /managed-scripts/usages/script/<id>}.
+         */
+        public Usage getScript(String id) {
+            return new Usage(id, getJobs(id));
+        }
+    }
+
+    /**
+     * The jobs referencing a script.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Usage {
+        private final String id;
+        private final List<String> jobs;
+
+        Usage(String id, List<String> jobs) {
+            this.id = id;
+            this.jobs = jobs;
+        }
+
+        public Api getApi() {
+            return new Api(this);
+        }
+
+        @Exported
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the name of the script if it is a global one, otherwise {@code null}
+         */
+        @Exported
+        @CheckForNull
+        public String getName() {
+            Config config = GlobalConfigFiles.get().getById(id);
+            return config == null ? null : config.name;
+        }
+
+        /**
+         * @return the full names of the jobs referencing the script, sorted
+         */
+        @Exported
+        public List<String> getJobs() {
+            return jobs;
+        }
+
+        /**
+         * @return the jobs referencing the script the current user can see
+         */
+        public List<Item> getItems() {
+            List<Item> items = new ArrayList<Item>();
+            for (String job : jobs) {
+                Item item = Jenkins.get().getItemByFullName(job);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return items;
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    int count = 0;
+                    try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+                        for (Project<?, ?> project : Jenkins.get().allItems(Project.class)) {
+                            index(project);
+                            count++;
+                        }
+                    }
+                    ready = true;
+                    LOGGER.log(Level.FINE, "Indexed the managed scripts of {0} jobs in {1} ms", new Object[]{count, (System.nanoTime() - start) / 1000000});
+                }
+            });
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            index(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            index(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            index(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            removeAll(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // called for every item within a moved folder as well
+            remove(oldFullName);
+            index(item);
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.Queue;
 import hudson.tasks.BuildStepDescriptor;
@@ -12,10 +17,9 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import org.jenkinsci.lib.configprovider.ConfigProvider;
 import org.jenkinsci.lib.configprovider.model.Config;
-import org.jenkinsci.plugins.configfiles.ConfigFiles;
-import org.jenkinsci.plugins.managedscripts.WinBatchConfig.Arg;
 import org.kohsuke.stapler.*;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,6 +36,7 @@ public class WinBatchBuildStep extends CommandInterpreter {
     private static final Logger LOGGER = Logger.getLogger(PowerShellBuildStep.class.getName());
 
     private final String[] buildStepArgs;
+    private boolean compress;
     private String content;
 
     public static class ArgValue {
@@ -83,6 +88,47 @@ public class WinBatchBuildStep extends CommandInterpreter {
         return Arrays.copyOf(args, args.length);
     }
 
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * @param compress whether to compress the output of the script on its way from the execution host to the controller
+     */
+    @DataBoundSetter
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Same as the default, unless the output is to be compressed and the launcher isn't decorated: then the script is executed by {@link AgentScriptRunner}, which compresses the output on
+     * the execution host already, and the script is looked up for the given build directly.
+     */
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) throws InterruptedException {
+        FilePath ws = build.getWorkspace();
+        if (!compress || ws == null || !AgentScriptRunner.canReplace(launcher)) {
+            return super.perform(build, launcher, listener);
+        }
+        try {
+            EnvVars envVars = build.getEnvironment(listener);
+            for (Map.Entry<String, String> e : build.getBuildVariables().entrySet()) {
+                envVars.put(e.getKey(), e.getValue());
+            }
+            Config buildStepConfig = getConfig(build);
+            AgentScriptRunner.Invocation invocation = new AgentScriptRunner.Invocation(buildStepConfig.name, getContents(buildStepConfig), getFileExtension(), Arrays.asList("cmd", "/c", "call"), "%s", Arrays.asList(getBuildStepArgs()));
+            AgentScriptRunner.Result result = new AgentScriptRunner(Collections.singletonList(invocation), envVars, listener.getLogger(), null, true).execute(ws).get(0);
+            ScriptMetrics metrics = ScriptMetrics.get(getBuildStepId());
+            metrics.run.record(result.durationNanos);
+            metrics.recordExitCode(result.exitCode);
+            return result.exitCode == 0;
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("command execution failed"));
+            return false;
+        }
+    }
+
     @Override
     public String[] buildCommandLine(FilePath script) {
 
@@ -103,18 +149,40 @@ public class WinBatchBuildStep extends CommandInterpreter {
         return (String[]) cml.toArray(new String[cml.size()]);
     }
 
+    /**
+     * Called by {@link CommandInterpreter#perform(AbstractBuild, Launcher, TaskListener)}, which doesn't pass the build on, so the script is looked up for the build of the current executor.
+     */
     @Override
     protected String getContents() {
+        return getContents(getConfig(getCurrentBuild()));
+    }
+
+    private Config getConfig(Run<?, ?> build) {
+        long start = System.nanoTime();
+        Config buildStepConfig = ConfigIndex.get(build, getBuildStepId(), Config.class);
+        if (buildStepConfig == null) {
+            throw new IllegalStateException(Messages.config_does_not_exist(getBuildStepId()));
+        }
+        ScriptMetrics.get(getBuildStepId()).lookup.recordSince(start);
+        return buildStepConfig;
+    }
+
+    private static String getContents(Config buildStepConfig) {
+        if (buildStepConfig instanceof WinBatchConfig) {
+            return ((WinBatchConfig) buildStepConfig).getRenderedContent();
+        }
+        return buildStepConfig.content + "\r\nexit %ERRORLEVEL%";
+    }
 
+    /**
+     * @return the build of the current executor
+     */
+    private Run<?, ?> getCurrentBuild() {
         Executor executor = Executor.currentExecutor();
         if (executor != null) {
             Queue.Executable currentExecutable = executor.getCurrentExecutable();
             if (currentExecutable != null) {
-                Config buildStepConfig = ConfigFiles.getByIdOrNull((Run<?, ?>) currentExecutable, getBuildStepId());
-                if (buildStepConfig == null) {
-                    throw new IllegalStateException(Messages.config_does_not_exist(getBuildStepId()));
-                }
-                return buildStepConfig.content + "\r\nexit %ERRORLEVEL%";
+                return (Run<?, ?>) currentExecutable;
             } else {
                 String msg = "current executable not accessable! can't get content of script: " + getBuildStepId();
                 LOGGER.log(Level.SEVERE, msg);
@@ -125,7 +193,31 @@ public class WinBatchBuildStep extends CommandInterpreter {
             LOGGER.log(Level.SEVERE, msg);
             throw new RuntimeException(msg);
         }
+    }
 
+    /**
+     * Same as the default, but records the time it takes to write the script into the workspace.
+     */
+    @Override
+    public FilePath createScriptFile(@NonNull FilePath dir) throws IOException, InterruptedException {
+        String contents = getContents();
+        long start = System.nanoTime();
+        FilePath script = dir.createTextTempFile("jenkins", getFileExtension(), contents, false);
+        ScriptMetrics.get(getBuildStepId()).transfer.recordSince(start);
+        return script;
+    }
+
+    /**
+     * Same as the default, but records the run time and exit code of the script.
+     */
+    @Override
+    protected int join(Proc p) throws IOException, InterruptedException {
+        ScriptMetrics metrics = ScriptMetrics.get(getBuildStepId());
+        long start = System.nanoTime();
+        int r = super.join(p);
+        metrics.run.recordSince(start);
+        metrics.recordExitCode(r);
+        return r;
     }
 
     @Override
@@ -168,45 +260,7 @@ public class WinBatchBuildStep extends CommandInterpreter {
          * @return A collection of batch files of type {@link WinBatchConfig}.
          */
         public ListBoxModel doFillBuildStepIdItems(@AncestorInPath ItemGroup context) {
-            List<Config> configsInContext = ConfigFiles.getConfigsInContext(context, WinBatchConfig.WinBatchConfigProvider.class);
-            Collections.sort(configsInContext, new Comparator<Config>() {
-                public int compare(Config o1, Config o2) {
-                    return o1.name.compareTo(o2.name);
-                }
-            });
-            ListBoxModel items = new ListBoxModel();
-            items.add("please select", "");
-            for (Config config : configsInContext) {
-                items.add(config.name, config.id);
-            }
-            return items;
-        }
-
-        /**
-         * gets the argument description to be displayed on the screen when selecting a config in the dropdown
-         *
-         * @param configId the config id to get the arguments description for
-         * @return the description
-         */
-        private String getArgsDescription(@AncestorInPath Item context, String configId) {
-            final WinBatchConfig config = ConfigFiles.getByIdOrNull(context, configId);
-            if (config != null) {
-                if (config.args != null && !config.args.isEmpty()) {
-                    StringBuilder sb = new StringBuilder("Required arguments: ");
-                    int i = 1;
-                    for (Iterator<Arg> iterator = config.args.iterator(); iterator.hasNext(); i++) {
-                        Arg arg = iterator.next();
-                        sb.append(i).append(". ").append(arg.name);
-                        if (iterator.hasNext()) {
-                            sb.append(" | ");
-                        }
-                    }
-                    return sb.toString();
-                } else {
-                    return "No arguments required";
-                }
-            }
-            return "please select a valid script!";
+            return ConfigIndex.getItems(context, WinBatchConfig.WinBatchConfigProvider.class);
         }
 
         /**
@@ -216,9 +270,9 @@ public class WinBatchBuildStep extends CommandInterpreter {
          * @return
          */
         public HttpResponse doCheckBuildStepId(StaplerRequest req, @AncestorInPath Item context, @QueryParameter String buildStepId) {
-            final WinBatchConfig config = ConfigFiles.getByIdOrNull(context, buildStepId);
+            final WinBatchConfig config = ConfigIndex.get(context, buildStepId, WinBatchConfig.class);
             if (config != null) {
-                return DetailLinkDescription.getDescription(req, context, buildStepId, getArgsDescription(context, buildStepId));
+                return DetailLinkDescription.getDescription(req, context, config, config.getArgsDescription());
             } else {
                 return FormValidation.error("you must select a valid batch file");
             }
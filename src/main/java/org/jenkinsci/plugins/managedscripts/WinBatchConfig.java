@@ -6,8 +6,6 @@ package org.jenkinsci.plugins.managedscripts;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 
-import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
 
 import jenkins.model.Jenkins;
@@ -21,25 +19,14 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * @author Dominik Bartholdi (imod)
  * 
  */
-public class WinBatchConfig extends Config {
+public class WinBatchConfig extends ManagedScriptConfig {
 
-    public final List<Arg> args;
+    // content and exit trailer, built on first use
+    private transient volatile String renderedContent;
 
     @DataBoundConstructor
     public WinBatchConfig(String id, String name, String comment, String content, List<Arg> args) {
-        super(id, name, comment, content);
-
-        if (args != null) {
-            List<Arg> filteredArgs = new ArrayList<WinBatchConfig.Arg>();
-            for (Arg arg : args) {
-                if (arg.name != null && arg.name.trim().length() > 0) {
-                    filteredArgs.add(arg);
-                }
-            }
-            this.args = filteredArgs;
-        } else {
-            this.args = null;
-        }
+        super(id, name, comment, content, args);
     }
 
     @Override
@@ -47,12 +34,27 @@ public class WinBatchConfig extends Config {
         return Jenkins.get().getDescriptorByType(WinBatchConfigProvider.class);
     }
 
-    public static class Arg implements Serializable {
-        public final String name;
+    /**
+     * @return the script as written to the execution host: with CRLF line endings and exiting with the exit code of the last command. Built only once per config (re)load.
+     */
+    public String getRenderedContent() {
+        String rendered = renderedContent;
+        if (rendered == null) {
+            rendered = withCrLf(content) + "\r\nexit %ERRORLEVEL%";
+            renderedContent = rendered;
+        }
+        return rendered;
+    }
+
+    @Override
+    protected Arg newArg(String name) {
+        return new Arg(name);
+    }
 
+    public static class Arg extends ManagedScriptConfig.Arg {
         @DataBoundConstructor
         public Arg(final String name) {
-            this.name = name;
+            super(name);
         }
     }
 
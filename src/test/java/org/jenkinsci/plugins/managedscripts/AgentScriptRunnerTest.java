@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.slaves.DumbSlave;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+public class AgentScriptRunnerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FilePath root;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeFalse(Functions.isWindows());
+        DumbSlave agent = j.createOnlineSlave();
+        root = agent.getRootPath();
+    }
+
+    @Test
+    public void compressedOutputArrivesBeforeReturning() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<AgentScriptRunner.Result> results = new AgentScriptRunner(Arrays.asList(
+                invocation("first", "/bin/sh", "echo first\n"),
+                invocation("second", "/bin/sh", "echo second; exit 2\n"),
+                invocation("third", "/bin/sh", "echo third\n")), new EnvVars(), out, null, true).execute(root);
+
+        assertEquals(2, results.size());
+        assertEquals(0, results.get(0).exitCode);
+        assertEquals(2, results.get(1).exitCode);
+        String log = out.toString("UTF-8");
+        assertTrue(log, log.contains("first\n") && log.contains("second\n"));
+        assertTrue(log, !log.contains("third"));
+    }
+
+    @Test
+    public void compressedOutputArrivesIfExecutionFails() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new AgentScriptRunner(Arrays.asList(
+                    invocation("working", "/bin/sh", "echo working\n"),
+                    invocation("broken", "/nonexistent/interpreter", "echo never\n")), new EnvVars(), out, null, true).execute(root);
+            fail("the interpreter doesn't exist");
+        } catch (IOException e) {
+            // expected
+        }
+        // synchronized with the agent before the inflater got ended
+        String log = out.toString("UTF-8");
+        assertTrue(log, log.contains("working\n"));
+        assertTrue(log, log.contains("executing script 'broken'"));
+    }
+
+    private static AgentScriptRunner.Invocation invocation(String name, String interpreter, String content) {
+        return new AgentScriptRunner.Invocation(name, content, ".sh", Collections.singletonList(interpreter), "%s", Collections.<String>emptyList());
+    }
+}
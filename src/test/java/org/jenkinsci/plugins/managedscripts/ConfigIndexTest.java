@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.Items;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.jenkinsci.plugins.configfiles.folder.FolderConfigFileProperty;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void globalSaveInvalidates() throws Exception {
+        GlobalConfigFiles.get().save(script("global", "echo first\n"));
+        assertEquals("echo first\n", ConfigIndex.get(j.jenkins, "global", ScriptConfig.class).content);
+        List<Config> items = ConfigIndex.getConfigsInContext(j.jenkins, ScriptConfig.ScriptConfigProvider.class);
+        assertSame(items, ConfigIndex.getConfigsInContext(j.jenkins, ScriptConfig.ScriptConfigProvider.class));
+
+        GlobalConfigFiles.get().save(script("global", "echo second\n"));
+        assertEquals("echo second\n", ConfigIndex.get(j.jenkins, "global", ScriptConfig.class).content);
+        assertNotSame(items, ConfigIndex.getConfigsInContext(j.jenkins, ScriptConfig.ScriptConfigProvider.class));
+    }
+
+    @Test
+    public void wrongTypeOrMissing() throws Exception {
+        GlobalConfigFiles.get().save(script("typed", "echo\n"));
+        assertNull(ConfigIndex.get(j.jenkins, "typed", WinBatchConfig.class));
+        assertNull(ConfigIndex.get(j.jenkins, "missing", Config.class));
+        assertNull(ConfigIndex.get(j.jenkins, null, Config.class));
+    }
+
+    @Test
+    public void folderSaveWithoutChangesKeepsIndex() throws Exception {
+        Folder folder = j.jenkins.createProject(Folder.class, "folder");
+        FolderConfigFileProperty property = new FolderConfigFileProperty(folder);
+        folder.getProperties().add(property);
+        property.save(script("in-folder", "echo first\n"));
+        folder.save();
+
+        List<Config> items = ConfigIndex.getConfigsInContext(folder, ScriptConfig.ScriptConfigProvider.class);
+        assertEquals(1, items.size());
+        // e.g. a multibranch project after branch indexing
+        folder.save();
+        assertSame(items, ConfigIndex.getConfigsInContext(folder, ScriptConfig.ScriptConfigProvider.class));
+
+        property.save(script("in-folder", "echo second\n"));
+        folder.save();
+        assertEquals("echo second\n", ConfigIndex.get(folder, "in-folder", ScriptConfig.class).content);
+        assertNotSame(items, ConfigIndex.getConfigsInContext(folder, ScriptConfig.ScriptConfigProvider.class));
+    }
+
+    @Test
+    public void folderConfigsComparedByVersion() throws Exception {
+        Folder folder = j.jenkins.createProject(Folder.class, "compared");
+        FolderConfigFileProperty property = new FolderConfigFileProperty(folder);
+        folder.getProperties().add(property);
+        property.save(script("compared", "echo first\n"));
+        folder.save();
+        assertFalse(ConfigIndex.folderConfigsChanged(folder));
+
+        List<Config> items = ConfigIndex.getConfigsInContext(folder, ScriptConfig.ScriptConfigProvider.class);
+        // a new instance of the same config
+        property.save(script("compared", "echo first\n"));
+        folder.save();
+        assertSame(items, ConfigIndex.getConfigsInContext(folder, ScriptConfig.ScriptConfigProvider.class));
+
+        GlobalConfigFiles.get().save(script("visible", "echo\n"));
+        // configs of the parents are visible in the folder too
+        assertTrue(ConfigIndex.folderConfigsChanged(folder));
+    }
+
+    @Test
+    public void folderMoveAndDeleteInvalidate() throws Exception {
+        Folder folder = j.jenkins.createProject(Folder.class, "moved");
+        Folder target = j.jenkins.createProject(Folder.class, "target");
+        List<Config> items = ConfigIndex.getConfigsInContext(j.jenkins, ScriptConfig.ScriptConfigProvider.class);
+        Items.move(folder, target);
+        List<Config> moved = ConfigIndex.getConfigsInContext(j.jenkins, ScriptConfig.ScriptConfigProvider.class);
+        assertNotSame(items, moved);
+        folder.delete();
+        assertNotSame(moved, ConfigIndex.getConfigsInContext(j.jenkins, ScriptConfig.ScriptConfigProvider.class));
+    }
+
+    private static ScriptConfig script(String id, String content) {
+        return new ScriptConfig(id, id, "", content, Collections.<ScriptConfig.Arg>emptyList());
+    }
+}
@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DurableManagedScriptStepTest {
+
+    private static final List<String> SH = Collections.singletonList("/bin/sh");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void withoutLibraries() {
+        String content = "echo \"$1\"\n";
+        String wrapper = DurableManagedScriptStep.wrapperScript(content, Collections.<String, String>emptyMap(), Arrays.asList("/bin/bash", "-e"), Arrays.asList("it's", "$HOME"));
+        String delimiter = "MANAGED_SCRIPT_" + ScriptCache.hash(content);
+        assertEquals("#!/bin/sh\n"
+                + "exec '/bin/bash' '-e' '/dev/stdin' 'it'\\''s' '$HOME' <<'" + delimiter + "'\n"
+                + content
+                + delimiter + "\n", wrapper);
+    }
+
+    @Test
+    public void contentWithoutTrailingNewline() {
+        String wrapper = DurableManagedScriptStep.wrapperScript("echo", Collections.<String, String>emptyMap(), SH, Collections.<String>emptyList());
+        assertTrue(wrapper, wrapper.endsWith("\necho\nMANAGED_SCRIPT_" + ScriptCache.hash("echo") + "\n"));
+    }
+
+    @Test
+    public void delimiterNotInContent() {
+        // a script containing the delimiter of another script
+        String other = "MANAGED_SCRIPT_" + ScriptCache.hash("echo other\n");
+        String content = "cat <<'" + other + "'\nfoo\n" + other + "\n";
+        String wrapper = DurableManagedScriptStep.wrapperScript(content, Collections.<String, String>emptyMap(), SH, Collections.<String>emptyList());
+        assertFalse(content.contains("MANAGED_SCRIPT_" + ScriptCache.hash(content)));
+        assertTrue(wrapper, wrapper.contains("<<'MANAGED_SCRIPT_" + ScriptCache.hash(content) + "'\n"));
+    }
+
+    @Test
+    public void withLibraries() {
+        Map<String, String> libraries = new LinkedHashMap<String, String>();
+        libraries.put("common.sh", "greet() { echo hello; }");
+        String wrapper = DurableManagedScriptStep.wrapperScript("greet\n", libraries, SH, Collections.singletonList("arg"));
+        assertTrue(wrapper, wrapper.startsWith("#!/bin/sh\ndir=$(mktemp -d) || exit 1\ntrap 'rm -rf \"$dir\"' EXIT\ntrap 'exit 143' HUP INT TERM\n"));
+        assertTrue(wrapper, wrapper.contains("mkdir \"$dir/" + ScriptConfig.LIBRARY_DIR + "\" || exit 1\n"));
+        assertTrue(wrapper, wrapper.contains("cat > \"$dir/script.sh\" <<'MANAGED_SCRIPT_" + ScriptCache.hash("greet\n") + "'\n"));
+        assertTrue(wrapper, wrapper.contains("cat > \"$dir/" + ScriptConfig.LIBRARY_DIR + "/common.sh\" <<'MANAGED_SCRIPT_" + ScriptCache.hash("greet() { echo hello; }") + "'\n"));
+        // not exec'ed, so the trap removes the directory
+        assertTrue(wrapper, wrapper.endsWith("\n'/bin/sh' \"$dir/script.sh\" 'arg'\n"));
+        assertFalse(wrapper, wrapper.contains("exec"));
+    }
+
+    @Test
+    public void executesWithoutLibraries() throws Exception {
+        String content = "echo \"$# $1 $2\"\n";
+        assertEquals("2 it's $HOME\n", execute(DurableManagedScriptStep.wrapperScript(content, Collections.<String, String>emptyMap(), SH, Arrays.asList("it's", "$HOME"))));
+    }
+
+    @Test
+    public void executesWithLibraries() throws Exception {
+        Map<String, String> libraries = new LinkedHashMap<String, String>();
+        libraries.put("common.sh", "greet() { echo \"hello $1\"; }\n");
+        String content = ". \"$(dirname \"$0\")/" + ScriptConfig.LIBRARY_DIR + "/common.sh\"\ngreet \"$1\"\necho \"$0\" > \"$2\"\n";
+        File scriptPath = new File(tmp.getRoot(), "script-path");
+        String output = execute(DurableManagedScriptStep.wrapperScript(content, libraries, SH, Arrays.asList("it's", scriptPath.getPath())));
+        assertEquals("hello it's\n", output);
+        // the temporary directory got removed
+        File script = new File(new String(Files.readAllBytes(scriptPath.toPath()), StandardCharsets.UTF_8).trim());
+        assertFalse(script.getParentFile().exists());
+    }
+
+    private String execute(String wrapper) throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute() && new File("/dev/stdin").exists());
+        File file = tmp.newFile("wrapper.sh");
+        Files.write(file.toPath(), wrapper.getBytes(StandardCharsets.UTF_8));
+        Process process = new ProcessBuilder("/bin/sh", file.getPath()).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        assertEquals(out.toString("UTF-8"), 0, process.waitFor());
+        return out.toString("UTF-8");
+    }
+}
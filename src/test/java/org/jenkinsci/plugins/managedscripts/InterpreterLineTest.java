@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class InterpreterLineTest {
+
+    @Test
+    public void noHashBang() {
+        assertNull(InterpreterLine.parse("echo hello\n"));
+        assertNull(InterpreterLine.parse(""));
+    }
+
+    @Test
+    public void hashBangOnly() {
+        assertNull(InterpreterLine.parse("#!"));
+        assertNull(InterpreterLine.parse("#!\n"));
+        assertNull(InterpreterLine.parse("#!  \r\necho hello\n"));
+    }
+
+    @Test
+    public void simple() {
+        InterpreterLine line = InterpreterLine.parse("#!/bin/bash -xe\necho hello\n");
+        assertEquals("/bin/bash", line.getExecutable());
+        assertEquals(Arrays.asList("/bin/bash", "-xe"), line.getCommand());
+    }
+
+    @Test
+    public void withoutTrailingNewline() {
+        assertEquals(Arrays.asList("/bin/sh"), InterpreterLine.parse("#!/bin/sh").getCommand());
+    }
+
+    @Test
+    public void crlf() {
+        InterpreterLine line = InterpreterLine.parse("#!/bin/bash -e\r\necho hello\r\n");
+        assertEquals(Arrays.asList("/bin/bash", "-e"), line.getCommand());
+    }
+
+    @Test
+    public void leadingWhitespace() {
+        InterpreterLine line = InterpreterLine.parse("#! \t/usr/bin/python3   -u\n");
+        assertEquals(Arrays.asList("/usr/bin/python3", "-u"), line.getCommand());
+        // only a hash-bang at the very start of the script counts
+        assertNull(InterpreterLine.parse(" #!/bin/bash\n"));
+    }
+
+    @Test
+    public void envSplitString() {
+        InterpreterLine line = InterpreterLine.parse("#!/usr/bin/env -S prog --opt 'quoted arg' last\n");
+        assertEquals("/usr/bin/env", line.getExecutable());
+        assertEquals(Arrays.asList("/usr/bin/env", "prog", "--opt", "quoted arg", "last"), line.getCommand());
+    }
+
+    @Test
+    public void envSplitStringAttached() {
+        InterpreterLine line = InterpreterLine.parse("#!/usr/bin/env -Sprog args\r\n");
+        assertEquals(Arrays.asList("/usr/bin/env", "prog", "args"), line.getCommand());
+    }
+
+    @Test
+    public void envWithoutSplitString() {
+        InterpreterLine line = InterpreterLine.parse("#!/usr/bin/env python3\n");
+        assertEquals(Arrays.asList("/usr/bin/env", "python3"), line.getCommand());
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import jenkins.model.Jenkins;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ManagedScriptConfigTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void loadFormerArgs() {
+        String xml = "<org.jenkinsci.plugins.managedscripts.ScriptConfig>\n"
+                + "  <id>old-script</id>\n"
+                + "  <name>Old script</name>\n"
+                + "  <comment></comment>\n"
+                + "  <content>echo $1 $2</content>\n"
+                + "  <args>\n"
+                + "    <org.jenkinsci.plugins.managedscripts.ScriptConfig_-Arg>\n"
+                + "      <name>first</name>\n"
+                + "    </org.jenkinsci.plugins.managedscripts.ScriptConfig_-Arg>\n"
+                + "    <org.jenkinsci.plugins.managedscripts.ScriptConfig_-Arg>\n"
+                + "      <name>second</name>\n"
+                + "    </org.jenkinsci.plugins.managedscripts.ScriptConfig_-Arg>\n"
+                + "  </args>\n"
+                + "</org.jenkinsci.plugins.managedscripts.ScriptConfig>";
+        ScriptConfig config = (ScriptConfig) Jenkins.XSTREAM2.fromXML(xml);
+        assertEquals(Arrays.asList("first", "second"), config.getArgNames());
+        assertEquals(2, config.args.size());
+        assertEquals("second", config.args.get(1).name);
+        assertTrue(config.args.get(0) instanceof ScriptConfig.Arg);
+
+        String saved = Jenkins.XSTREAM2.toXML(config);
+        assertTrue(saved, saved.contains("<argNames>"));
+        assertFalse(saved, saved.contains("<args>"));
+        ScriptConfig reloaded = (ScriptConfig) Jenkins.XSTREAM2.fromXML(saved);
+        assertEquals(Arrays.asList("first", "second"), reloaded.getArgNames());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void loadFormerWithoutArgs() {
+        String xml = "<org.jenkinsci.plugins.managedscripts.ScriptConfig>\n"
+                + "  <id>old-script</id>\n"
+                + "  <name>Old script</name>\n"
+                + "  <content>echo</content>\n"
+                + "</org.jenkinsci.plugins.managedscripts.ScriptConfig>";
+        ScriptConfig config = (ScriptConfig) Jenkins.XSTREAM2.fromXML(xml);
+        assertEquals(Collections.<String>emptyList(), config.getArgNames());
+        assertNull(config.args);
+    }
+
+    @Test
+    public void filterBlankArgs() {
+        ScriptConfig config = new ScriptConfig("id", "name", "", "echo", Arrays.asList(new ScriptConfig.Arg("first"), new ScriptConfig.Arg(" "), new ScriptConfig.Arg(null)));
+        assertEquals(Collections.singletonList("first"), config.getArgNames());
+        assertEquals("Required arguments: 1. first", config.getArgsDescription());
+    }
+}
@@ -0,0 +1,142 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutputPolicyTest {
+
+    private static final long TIMEOUT_MILLIS = OutputPolicy.FLUSH_INTERVAL_MILLIS * 10;
+
+    @Test
+    public void keepsOutputBelowLimit() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new OutputPolicy(100, 0).wrap(sink, false);
+        out.write("abc".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        assertEquals("abc", sink.toString("UTF-8"));
+    }
+
+    @Test
+    public void keepsHeadAndTail() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new OutputPolicy(10, 0).wrap(sink, false);
+        out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+        out.write("ABCDEFGHIJ".getBytes(StandardCharsets.UTF_8));
+        out.close();
+        assertEquals("01234\n[... 10 bytes of output omitted ...]\nFGHIJ", sink.toString("UTF-8"));
+    }
+
+    @Test
+    public void unlimitedIsNotLimited() {
+        assertFalse(new OutputPolicy(0, 0).isLimited());
+        assertTrue(new OutputPolicy(Long.MAX_VALUE, 0).isLimited());
+    }
+
+    @Test
+    public void flushesHeldBackOutputWithoutFurtherWrites() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new OutputPolicy(0, 0).wrap(sink, true);
+        out.write("first line\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        // the script goes quiet, the stream stays open
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (sink.size() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("first line\n", sink.toString("UTF-8"));
+        out.close();
+    }
+
+    @Test
+    public void flushesHeldBackCompressedOutputWithoutFurtherWrites() throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        // as set up by AgentScriptRunner
+        OutputStream out = new OutputPolicy(0, 0).wrap(new DeflaterOutputStream(sink, deflater, OutputPolicy.BUFFER_SIZE, true), true);
+        out.write("first line\n".getBytes(StandardCharsets.UTF_8));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        String inflated = "";
+        while (inflated.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+            inflated = inflate(sink.toByteArray());
+        }
+        assertEquals("first line\n", inflated);
+        out.close();
+        deflater.end();
+    }
+
+    @Test
+    public void closeIsBounded() throws Exception {
+        long closeTimeout = OutputPolicy.CLOSE_TIMEOUT_MILLIS;
+        try {
+            OutputPolicy.CLOSE_TIMEOUT_MILLIS = 0;
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            OutputStream out = new OutputPolicy(20, 10).wrap(sink, true);
+            // the head takes about a second at 10 bytes per second
+            out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+            out.write("ABCDEFGHIJKLMNOPQRST".getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            // the marker and the tail would take another five seconds
+            out.close();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+            assertEquals("0123456789\n[... 10 bytes of output omitted ...]\nKLMNOPQRST", sink.toString("UTF-8"));
+        } finally {
+            OutputPolicy.CLOSE_TIMEOUT_MILLIS = closeTimeout;
+        }
+    }
+
+    @Test
+    public void throttlingIsInterruptible() throws Exception {
+        final OutputStream out = new OutputPolicy(0, 10).wrap(new ByteArrayOutputStream(), true);
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // would take a hundred seconds
+                    out.write(new byte[1000]);
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        });
+        writer.start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (writer.getState() != Thread.State.TIMED_WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        writer.interrupt();
+        writer.join(TIMEOUT_MILLIS);
+        if (writer.isAlive()) {
+            fail("the throttled writer wasn't interrupted");
+        }
+        assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof InterruptedIOException);
+    }
+
+    private static String inflate(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] buffer = new byte[1024];
+            int length = inflater.inflate(buffer);
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.ListBoxModel;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+
+/**
+ * Measures the steps {@link ScriptBuildStep#perform} is made of, each on its own.
+ */
+@JmhBenchmark
+public class ScriptBuildStepBenchmark {
+
+    private static final String CONFIG_ID = "benchmark-script";
+
+    /**
+     * A Jenkins instance running in the same JVM, with a managed script and a finished build to resolve macros against.
+     */
+    public static class JenkinsState extends JmhBenchmarkState {
+        @Param({"0", "50", "500"})
+        public int argCount;
+
+        FreeStyleProject project;
+        FreeStyleBuild build;
+        FilePath workspace;
+        String[] args;
+
+        @Override
+        public void setup() throws Exception {
+            GlobalConfigFiles.get().save(new ScriptConfig(CONFIG_ID, "benchmark", "", script(1024), null));
+            project = getJenkins().createProject(FreeStyleProject.class, "benchmark");
+            build = project.scheduleBuild2(0).get();
+            workspace = build.getWorkspace();
+            args = arguments(argCount);
+        }
+    }
+
+    /**
+     * Synthetic scripts and arguments, no Jenkins required.
+     */
+    @State(Scope.Benchmark)
+    public static class ScriptState {
+        @Param({"1024", "1048576", "10485760"})
+        public int contentSize;
+
+        @Param({"0", "50", "500"})
+        public int argCount;
+
+        String content;
+        ScriptConfig config;
+        String[] args;
+        FilePath tmp;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            content = script(contentSize);
+            config = new ScriptConfig(CONFIG_ID, "benchmark", "", content, null);
+            args = arguments(argCount);
+            tmp = new FilePath(Files.createTempDirectory("managed-scripts-benchmark").toFile());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            tmp.deleteRecursive();
+        }
+    }
+
+    @Benchmark
+    public Config configLookup(JenkinsState state) {
+        return ConfigFiles.getByIdOrNull(state.project, CONFIG_ID);
+    }
+
+    @Benchmark
+    public Config configLookupIndexed(JenkinsState state) {
+        return ConfigIndex.get(state.project, CONFIG_ID, ScriptConfig.class);
+    }
+
+    @Benchmark
+    public ListBoxModel buildStepIdItems(JenkinsState state) {
+        return ConfigIndex.getItems(state.getJenkins(), ScriptConfig.ScriptConfigProvider.class);
+    }
+
+    @Benchmark
+    public void expandArguments(JenkinsState state, Blackhole blackhole) throws Exception {
+        for (String arg : state.args) {
+            blackhole.consume(TokenMacro.expandAll(state.build, state.workspace, TaskListener.NULL, arg, false, null));
+        }
+    }
+
+    @Benchmark
+    public String[] expandArgumentsAtOnce(JenkinsState state) throws Exception {
+        return ScriptBuildStep.expandArguments(state.build, state.workspace, TaskListener.NULL, state.args);
+    }
+
+    @Benchmark
+    public InterpreterLine parseInterpreter(ScriptState state) {
+        return InterpreterLine.parse(state.content);
+    }
+
+    @Benchmark
+    public InterpreterLine parsedInterpreter(ScriptState state) {
+        return state.config.getInterpreterLine();
+    }
+
+    @Benchmark
+    public ArgumentListBuilder buildArgumentList(ScriptState state) {
+        ArgumentListBuilder args = new ArgumentListBuilder("/bin/bash", "/tmp/build_step_template.sh");
+        for (String arg : state.args) {
+            args.addTokenized(arg);
+        }
+        return args;
+    }
+
+    @Benchmark
+    public void writeTempFile(ScriptState state) throws Exception {
+        FilePath dest = state.tmp.createTextTempFile("build_step_template", ".sh", state.content, false);
+        dest.delete();
+    }
+
+    static String script(int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        sb.append("#!/bin/bash -e\n");
+        while (sb.length() < size) {
+            sb.append("echo \"managed script line ").append(sb.length()).append("\"\n");
+        }
+        return sb.toString();
+    }
+
+    static String[] arguments(int count) {
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            // mix plain values with ones referencing environment variables and macros
+            switch (i % 3) {
+                case 0:
+                    args[i] = "--plain-" + i + " value";
+                    break;
+                case 1:
+                    args[i] = "--number-" + i + "=${BUILD_NUMBER}";
+                    break;
+                default:
+                    args[i] = "--job-" + i + "=$JOB_NAME";
+                    break;
+            }
+        }
+        return args;
+    }
+}
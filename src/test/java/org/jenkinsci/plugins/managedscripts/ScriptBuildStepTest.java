@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ScriptBuildStepTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void expandsArgumentsAtOnce() throws Exception {
+        FreeStyleBuild build = build("first", "1st", "empty", "");
+        String[] args = {"$first-${BUILD_NUMBER}", "plain", "${empty}", "$first"};
+        assertArrayEquals(new String[]{"1st-1", "plain", "", "1st"}, ScriptBuildStep.expandArguments(build, build.getWorkspace(), TaskListener.NULL, args));
+    }
+
+    @Test
+    public void expandsArgumentsOneByOneIfTheyCantBeSplit() throws Exception {
+        // expanded to more parts than there are arguments
+        FreeStyleBuild build = build("separated", "a\0b", "other", "c");
+        String[] args = {"$separated", "$other", "plain"};
+        assertArrayEquals(new String[]{"a\0b", "c", "plain"}, ScriptBuildStep.expandArguments(build, build.getWorkspace(), TaskListener.NULL, args));
+    }
+
+    @Test
+    public void argumentsSurviveXStreamRoundTrip() throws Exception {
+        FreeStyleBuild build = build("param", "value");
+        ScriptBuildStep step = new ScriptBuildStep("id", true,
+                new ScriptBuildStep.ArgValue[]{new ScriptBuildStep.ArgValue("a b"), new ScriptBuildStep.ArgValue("$param c")}, true);
+        ArgumentListBuilder before = new ArgumentListBuilder();
+        step.addArguments(before, build, build.getWorkspace(), TaskListener.NULL);
+
+        String xml = Jenkins.XSTREAM2.toXML(step);
+        // derived from the arguments, not persisted
+        assertFalse(xml, xml.contains("argumentTemplate"));
+        ScriptBuildStep loaded = (ScriptBuildStep) Jenkins.XSTREAM2.fromXML(xml);
+        ArgumentListBuilder after = new ArgumentListBuilder();
+        loaded.addArguments(after, build, build.getWorkspace(), TaskListener.NULL);
+        assertEquals(before.toList(), after.toList());
+        assertEquals("[a, b, value, c]", after.toList().toString());
+    }
+
+    @Test
+    public void collidingLibraryNamesFail() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("first", "common lib", "", "echo first\n", Collections.<ScriptConfig.Arg>emptyList()));
+        GlobalConfigFiles.get().save(new ScriptConfig("second", "common_lib", "", "echo second\n", Collections.<ScriptConfig.Arg>emptyList()));
+        ScriptConfig script = new ScriptConfig("colliding", "colliding", "", "echo colliding\n", Collections.<ScriptConfig.Arg>emptyList());
+        script.setLibraries(Arrays.asList(new ScriptConfig.Library("first"), new ScriptConfig.Library("second")));
+        GlobalConfigFiles.get().save(script);
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new ScriptBuildStep("colliding", new String[0]));
+
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        j.assertLogContains(Messages.library_name_collision("common lib", "common_lib", "colliding", "common_lib"), build);
+        j.assertLogNotContains("echo colliding", build);
+    }
+
+    /**
+     * @param parameters names and values of the parameters of the build, alternating
+     */
+    private FreeStyleBuild build(String... parameters) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        List<ParameterDefinition> definitions = new ArrayList<ParameterDefinition>();
+        List<ParameterValue> values = new ArrayList<ParameterValue>();
+        for (int i = 0; i < parameters.length; i += 2) {
+            definitions.add(new StringParameterDefinition(parameters[i], ""));
+            values.add(new StringParameterValue(parameters[i], parameters[i + 1]));
+        }
+        project.addProperty(new ParametersDefinitionProperty(definitions));
+        return j.assertBuildStatusSuccess(project.scheduleBuild2(0, new ParametersAction(values)));
+    }
+}
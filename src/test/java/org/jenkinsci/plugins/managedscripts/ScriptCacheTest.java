@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.slaves.DumbSlave;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.jenkinsci.plugins.configfiles.folder.FolderConfigFileProperty;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class ScriptCacheTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void missThenHit() throws Exception {
+        String content = "echo missThenHit \u00e4\u00f6\u00fc\n";
+        ScriptCache.Statistics statistics = ScriptCache.getStatistics("");
+        long hits = statistics.getHits();
+        long misses = statistics.getMisses();
+
+        FilePath script = ScriptCache.get(j.jenkins, content);
+        assertNotNull(script);
+        assertEquals(misses + 1, statistics.getMisses());
+        // written with the charset of the node, as the hash got computed from
+        assertArrayEquals(content.getBytes(j.jenkins.toComputer().getDefaultCharset()), Files.readAllBytes(new File(script.getRemote()).toPath()));
+
+        assertEquals(script, ScriptCache.get(j.jenkins, content));
+        assertEquals(hits + 1, statistics.getHits());
+        assertEquals(misses + 1, statistics.getMisses());
+    }
+
+    @Test
+    public void modifiedEntryIsReplaced() throws Exception {
+        String content = "echo modifiedEntryIsReplaced\n";
+        FilePath script = ScriptCache.get(j.jenkins, content);
+        assertNotNull(script);
+        File file = new File(script.getRemote());
+        assertTrue(file.setWritable(true));
+        Files.write(file.toPath(), "echo modified\n".getBytes(StandardCharsets.UTF_8));
+
+        ScriptCache.Statistics statistics = ScriptCache.getStatistics("");
+        long misses = statistics.getMisses();
+        assertEquals(script, ScriptCache.get(j.jenkins, content));
+        assertEquals(misses + 1, statistics.getMisses());
+        assertEquals(content, script.readToString());
+    }
+
+    @Test
+    public void verifiesNonAsciiContentInAnyCharset() throws Exception {
+        File cache = tmp.newFolder();
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        Map<String, String> files = ScriptCache.files("echo \u00e4\u00f6\u00fc\n", Collections.singletonMap("lib.sh", "echo \u00df\n"));
+        Map<String, byte[]> encoded = ScriptCache.encode(files, latin1);
+        String hash = ScriptCache.hash(encoded);
+        File entry = new File(cache, hash);
+        for (Map.Entry<String, byte[]> file : encoded.entrySet()) {
+            File target = new File(entry, file.getKey());
+            assertTrue(target.getParentFile().isDirectory() || target.getParentFile().mkdirs());
+            Files.write(target.toPath(), file.getValue());
+        }
+        assertTrue(ScriptCache.verify(cache, hash));
+        assertTrue(entry.isDirectory());
+        // the same content as UTF-8 is a different entry
+        assertFalse(hash.equals(ScriptCache.hash(ScriptCache.encode(files, StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void scriptWithoutLibrariesKeepsHashOfContent() {
+        String content = "echo \u00e4\n";
+        assertEquals(ScriptCache.hash(content), ScriptCache.hash(ScriptCache.encode(ScriptCache.files(content, Collections.<String, String>emptyMap()), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        long maxSize = ScriptCache.MAX_SIZE;
+        long minAge = ScriptCache.MIN_AGE;
+        try {
+            FilePath first = ScriptCache.get(j.jenkins, "echo first\n");
+            assertNotNull(first);
+            File firstEntry = new File(first.getParent().getRemote());
+            assertTrue(firstEntry.setLastModified(System.currentTimeMillis() - 60000));
+
+            String second = "echo second\n";
+            ScriptCache.MAX_SIZE = second.getBytes(j.jenkins.toComputer().getDefaultCharset()).length;
+            ScriptCache.MIN_AGE = 0;
+            FilePath secondScript = ScriptCache.get(j.jenkins, second);
+            assertNotNull(secondScript);
+            assertFalse(firstEntry.exists());
+            assertTrue(secondScript.exists());
+        } finally {
+            ScriptCache.MAX_SIZE = maxSize;
+            ScriptCache.MIN_AGE = minAge;
+        }
+    }
+
+    @Test
+    public void scriptWithLibrariesOnAgent() throws Exception {
+        DumbSlave agent = j.createOnlineSlave();
+        Map<String, String> libraries = new LinkedHashMap<String, String>();
+        libraries.put("common.sh", "greet() { echo hello; }\n");
+        FilePath script = ScriptCache.get(agent, ". lib/common.sh\ngreet\n", libraries, "key");
+        assertNotNull(script);
+        assertTrue(script.getRemote().startsWith(agent.getRootPath().child(ScriptCache.CACHE_DIR).getRemote()));
+        assertEquals("greet() { echo hello; }\n", script.getParent().child(ScriptConfig.LIBRARY_DIR).child("common.sh").readToString());
+    }
+
+    @Test
+    public void notUsedForDecoratedLauncher() throws Exception {
+        assumeFalse(Functions.isWindows());
+        GlobalConfigFiles.get().save(new ScriptConfig("decorated", "decorated", "", "echo decorated\n", Collections.<ScriptConfig.Arg>emptyList()));
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new ScriptBuildStep("decorated", new String[0]));
+        project.getBuildWrappersList().add(new DecoratingWrapper());
+
+        ScriptCache.Statistics statistics = ScriptCache.getStatistics("");
+        long hits = statistics.getHits();
+        long misses = statistics.getMisses();
+        j.assertLogContains("decorated", j.buildAndAssertSuccess(project));
+        assertEquals(hits, statistics.getHits());
+        assertEquals(misses, statistics.getMisses());
+
+        project.getBuildWrappersList().clear();
+        j.buildAndAssertSuccess(project);
+        assertEquals(misses + 1, statistics.getMisses());
+    }
+
+    @Test
+    public void prewarmsGlobalScriptsOnly() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("global", "global", "", "echo global\n", Collections.<ScriptConfig.Arg>emptyList()));
+        Folder folder = j.jenkins.createProject(Folder.class, "folder");
+        FolderConfigFileProperty property = new FolderConfigFileProperty(folder);
+        folder.getProperties().add(property);
+        property.save(new ScriptConfig("private", "private", "", "echo private\n", Collections.<ScriptConfig.Arg>emptyList()));
+        ScriptCache.recordUse(folder, "private");
+        ScriptCache.recordUse(folder, "global");
+
+        Map<String, Map<String, String>> scripts = ScriptCache.getHotScripts();
+        assertEquals(Collections.singletonMap(ScriptCache.SCRIPT_NAME, "echo global\n"), scripts.get(ScriptCache.key(j.jenkins, "global")));
+        assertFalse(scripts.containsKey(ScriptCache.key(j.jenkins, "private")));
+        assertFalse(scripts.containsKey(ScriptCache.key(folder, "private")));
+    }
+
+    @Test
+    public void doesNotPrewarmCollidingLibraries() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("first", "common lib", "", "echo first\n", Collections.<ScriptConfig.Arg>emptyList()));
+        GlobalConfigFiles.get().save(new ScriptConfig("second", "common_lib", "", "echo second\n", Collections.<ScriptConfig.Arg>emptyList()));
+        ScriptConfig script = new ScriptConfig("colliding", "colliding", "", "echo colliding\n", Collections.<ScriptConfig.Arg>emptyList());
+        script.setLibraries(Arrays.asList(new ScriptConfig.Library("first"), new ScriptConfig.Library("second")));
+        GlobalConfigFiles.get().save(script);
+        ScriptCache.recordUse(j.jenkins, "colliding");
+
+        assertFalse(ScriptCache.getHotScripts().containsKey(ScriptCache.key(j.jenkins, "colliding")));
+    }
+
+    @Test
+    public void hotScriptsChangedOnlyOnce() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("hot", "hot", "", "echo hot\n", Collections.<ScriptConfig.Arg>emptyList()));
+        ScriptCache.recordUse(j.jenkins, "hot");
+        ScriptCache.hotScriptsChanged();
+        assertFalse(ScriptCache.hotScriptsChanged());
+
+        GlobalConfigFiles.get().save(new ScriptConfig("hotter", "hotter", "", "echo hotter\n", Collections.<ScriptConfig.Arg>emptyList()));
+        // the save got checked already
+        assertFalse(ScriptCache.hotScriptsChanged());
+        ScriptCache.recordUse(j.jenkins, "hotter");
+        assertTrue(ScriptCache.hotScriptsChanged());
+        assertFalse(ScriptCache.hotScriptsChanged());
+    }
+
+    /**
+     * Decorates the launcher without changing it, as e.g. wrappers running the build in a container do.
+     */
+    public static final class DecoratingWrapper extends BuildWrapper {
+        @Override
+        public Launcher decorateLauncher(AbstractBuild build, Launcher launcher, BuildListener listener) {
+            return new Launcher.DecoratedLauncher(launcher);
+        }
+
+        @Override
+        public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) {
+            return new Environment() {
+            };
+        }
+
+        @TestExtension("notUsedForDecoratedLauncher")
+        public static final class DescriptorImpl extends BuildWrapperDescriptor {
+            @Override
+            public boolean isApplicable(AbstractProject<?, ?> item) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptDeltaTest {
+
+    private static final int SIZE = 64 * 1024;
+
+    @Test
+    public void unchanged() throws IOException {
+        String base = script(SIZE, 1);
+        ScriptDelta delta = roundTrip(base, base);
+        // only the trailing partial block is transferred
+        assertTrue(delta.getLiteralLength() < ScriptDelta.MIN_BLOCK_SIZE);
+    }
+
+    @Test
+    public void insert() throws IOException {
+        String base = script(SIZE, 2);
+        String target = base.substring(0, SIZE / 2) + "echo inserted\n" + base.substring(SIZE / 2);
+        ScriptDelta delta = roundTrip(base, target);
+        assertTrue(delta.getLiteralLength() < 3 * ScriptDelta.MIN_BLOCK_SIZE);
+    }
+
+    @Test
+    public void delete() throws IOException {
+        String base = script(SIZE, 3);
+        String target = base.substring(0, SIZE / 3) + base.substring(SIZE / 3 + 100);
+        ScriptDelta delta = roundTrip(base, target);
+        assertTrue(delta.getLiteralLength() < 3 * ScriptDelta.MIN_BLOCK_SIZE);
+    }
+
+    @Test
+    public void append() throws IOException {
+        String base = script(SIZE, 4);
+        String target = base + "echo appended\n";
+        ScriptDelta delta = roundTrip(base, target);
+        assertTrue(delta.getLiteralLength() < 2 * ScriptDelta.MIN_BLOCK_SIZE);
+    }
+
+    @Test
+    public void prepend() throws IOException {
+        String base = script(SIZE, 5);
+        // shifts every block of the former version off the block boundaries
+        String target = "#" + base;
+        ScriptDelta delta = roundTrip(base, target);
+        assertTrue(delta.getLiteralLength() < 2 * ScriptDelta.MIN_BLOCK_SIZE);
+    }
+
+    @Test
+    public void changeAtBlockBoundary() throws IOException {
+        String base = script(SIZE, 6);
+        int boundary = new ScriptDelta.Signature(base).blockSize * 4;
+        String target = base.substring(0, boundary - 1) + "XY" + base.substring(boundary + 1);
+        ScriptDelta delta = roundTrip(base, target);
+        assertTrue(delta.getLiteralLength() < 4 * ScriptDelta.MIN_BLOCK_SIZE);
+    }
+
+    @Test
+    public void emptyBase() throws IOException {
+        String target = script(SIZE, 7);
+        ScriptDelta delta = roundTrip("", target);
+        assertEquals(target.length(), delta.getLiteralLength());
+    }
+
+    @Test
+    public void emptyTarget() throws IOException {
+        ScriptDelta delta = roundTrip(script(SIZE, 8), "");
+        assertEquals(0, delta.getLiteralLength());
+    }
+
+    @Test
+    public void smallerThanBlock() throws IOException {
+        roundTrip("echo hello\n", "echo hello world\n");
+    }
+
+    @Test
+    public void unrelated() throws IOException {
+        String target = script(SIZE, 10);
+        ScriptDelta delta = roundTrip(script(SIZE, 9), target);
+        assertEquals(target.length(), delta.getLiteralLength());
+    }
+
+    @Test(expected = IOException.class)
+    public void baseTooShort() throws IOException {
+        String base = script(SIZE, 11);
+        ScriptDelta delta = ScriptDelta.diff(new ScriptDelta.Signature(base), base);
+        delta.apply(base.substring(0, SIZE / 2));
+    }
+
+    private static ScriptDelta roundTrip(String base, String target) throws IOException {
+        ScriptDelta delta = ScriptDelta.diff(new ScriptDelta.Signature(base), target);
+        assertEquals(target, delta.apply(base));
+        return delta;
+    }
+
+    /**
+     * @return a script of random lines, the same for the same seed
+     */
+    private static String script(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append("echo ").append(Long.toHexString(random.nextLong())).append(" \u00e4\u00f6\u00fc\n");
+        }
+        return sb.substring(0, size);
+    }
+}
@@ -0,0 +1,207 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Functions;
+import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.AuthorizationStrategy;
+import hudson.slaves.DumbSlave;
+import jenkins.model.Jenkins;
+import jenkins.security.QueueItemAuthenticatorConfiguration;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.MockQueueItemAuthenticator;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+public class ScriptFanOutBuildStepTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void setUp() throws Exception {
+        assumeFalse(Functions.isWindows());
+        GlobalConfigFiles.get().save(new ScriptConfig("fan", "fan", "", "echo \"hello $1\"\n", Collections.<ScriptConfig.Arg>emptyList()));
+    }
+
+    @Test
+    public void executesOnMatchingAgents() throws Exception {
+        DumbSlave first = j.createOnlineSlave(Label.get("fan"));
+        DumbSlave second = j.createOnlineSlave(Label.get("fan"));
+        DumbSlave other = j.createOnlineSlave(Label.get("other"));
+        FreeStyleProject project = project(new ScriptBuildStep("fan", new String[]{"world"}));
+        runAs(project, "alice");
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        j.assertLogContains("[" + first.getDisplayName() + "] hello world", build);
+        j.assertLogContains("[" + second.getDisplayName() + "] hello world", build);
+        j.assertLogNotContains("[" + other.getDisplayName() + "]", build);
+        j.assertLogContains("succeeded on 2 of 2 nodes", build);
+    }
+
+    @Test
+    public void honoursOutputLimit() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("chatty", "chatty", "", "i=0\nwhile [ $i -lt 1000 ]; do echo \"line $i\"; i=$((i+1)); done\n",
+                Collections.<ScriptConfig.Arg>emptyList()));
+        DumbSlave agent = j.createOnlineSlave(Label.get("fan"));
+        ScriptBuildStep script = new ScriptBuildStep("chatty", new String[0]);
+        script.setOutputLimit(1);
+        script.setCompress(true);
+        FreeStyleProject project = project(script);
+        runAs(project, "alice");
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        j.assertLogContains("[" + agent.getDisplayName() + "] line 0", build);
+        j.assertLogContains("bytes of output omitted", build);
+        j.assertLogContains("[" + agent.getDisplayName() + "] line 999", build);
+        j.assertLogNotContains("line 500", build);
+    }
+
+    @Test
+    public void refusesStdin() throws Exception {
+        j.createOnlineSlave(Label.get("fan"));
+        ScriptBuildStep script = new ScriptBuildStep("fan", new String[0]);
+        script.setStdin(true);
+        FreeStyleProject project = project(script);
+        runAs(project, "alice");
+
+        j.assertLogContains("can't be piped to the interpreter", j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0)));
+    }
+
+    @Test
+    public void refusesSystem() throws Exception {
+        j.createOnlineSlave(Label.get("fan"));
+        FreeStyleProject project = project(new ScriptBuildStep("fan", new String[0]));
+
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        j.assertLogContains("refusing to execute a script on other nodes", build);
+        j.assertLogNotContains("hello", build);
+    }
+
+    @Test
+    public void skipsNodesWithoutBuildPermission() throws Exception {
+        DumbSlave allowed = j.createOnlineSlave(Label.get("fan"));
+        DumbSlave denied = j.createSlave("denied", "fan", null);
+        j.waitOnline(denied);
+        j.jenkins.setAuthorizationStrategy(new DenyBuildOn("denied"));
+        FreeStyleProject project = project(new ScriptBuildStep("fan", new String[]{"world"}));
+        runAs(project, "alice");
+
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        j.assertLogContains("[" + allowed.getDisplayName() + "] hello world", build);
+        j.assertLogNotContains("[denied] hello", build);
+        j.assertLogContains("denied: alice is missing the permission " + Computer.BUILD.getId(), build);
+    }
+
+    @Test
+    public void skipsNodesNotAcceptingTasks() throws Exception {
+        DumbSlave agent = j.createOnlineSlave(Label.get("fan"));
+        agent.toComputer().setTemporarilyOffline(true, null);
+        FreeStyleProject project = project(new ScriptBuildStep("fan", new String[0]));
+        runAs(project, "alice");
+
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        j.assertLogNotContains("hello", build);
+    }
+
+    @Test
+    public void checkLabelRequiresPostAndConfigure() throws Exception {
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin")
+                .grant(Jenkins.READ, Item.READ).everywhere().to("reader"));
+        FreeStyleProject project = j.createFreeStyleProject("p");
+        ScriptFanOutBuildStep.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(ScriptFanOutBuildStep.DescriptorImpl.class);
+
+        try (ACLContext ctx = ACL.as(User.getById("reader", true))) {
+            descriptor.doCheckLabel(project, "fan");
+            fail("reader can't configure the project");
+        } catch (AccessDeniedException e) {
+            // expected
+        }
+        try (ACLContext ctx = ACL.as(User.getById("reader", true))) {
+            descriptor.doCheckLabel(null, "fan");
+            fail("reader is no administrator");
+        } catch (AccessDeniedException e) {
+            // expected
+        }
+        try (ACLContext ctx = ACL.as(User.getById("admin", true))) {
+            descriptor.doCheckLabel(project, "fan");
+        }
+        j.createWebClient().login("admin").assertFails("descriptorByName/" + ScriptFanOutBuildStep.class.getName() + "/checkLabel?value=fan", 405);
+    }
+
+    private FreeStyleProject project(ScriptBuildStep script) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("p");
+        // the build itself runs on the built-in node
+        project.setAssignedNode(j.jenkins);
+        project.getBuildersList().add(new ScriptFanOutBuildStep(script, "fan"));
+        return project;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void runAs(FreeStyleProject project, String user) {
+        QueueItemAuthenticatorConfiguration.get().getAuthenticators()
+                .add(new MockQueueItemAuthenticator(Collections.singletonMap(project.getFullName(), User.getById(user, true).impersonate())));
+    }
+
+    /**
+     * Grants everything, except building on a single node.
+     */
+    private static final class DenyBuildOn extends AuthorizationStrategy {
+        private final String nodeName;
+
+        DenyBuildOn(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        @Override
+        public ACL getRootACL() {
+            return new ACL() {
+                @Override
+                public boolean hasPermission2(Authentication a, hudson.security.Permission permission) {
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public ACL getACL(Node node) {
+            return node.getNodeName().equals(nodeName) ? new ACL() {
+                @Override
+                public boolean hasPermission2(Authentication a, hudson.security.Permission permission) {
+                    return permission != Computer.BUILD || ACL.SYSTEM_USERNAME.equals(a.getName());
+                }
+            } : getRootACL();
+        }
+
+        @Override
+        public ACL getACL(Computer computer) {
+            Node node = computer.getNode();
+            return node == null ? getRootACL() : getACL(node);
+        }
+
+        @Override
+        public Collection<String> getGroups() {
+            return Collections.<String>emptySet();
+        }
+    }
+}
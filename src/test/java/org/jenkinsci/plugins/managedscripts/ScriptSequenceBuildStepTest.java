@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class ScriptSequenceBuildStepTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void setUp() throws Exception {
+        assumeFalse(Functions.isWindows());
+    }
+
+    @Test
+    public void executesInOrderInOneRoundTrip() throws Exception {
+        script("first", "echo \"first $1\"\n");
+        script("second", "echo \"second $1\"\n");
+        FreeStyleProject project = project(new ScriptBuildStep("first", new String[]{"a"}), new ScriptBuildStep("second", new String[]{"b"}));
+
+        ScriptCache.Statistics statistics = ScriptCache.getStatistics("");
+        long misses = statistics.getMisses();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        String log = JenkinsRule.getLog(build);
+        assertTrue(log, log.indexOf("first a") >= 0 && log.indexOf("first a") < log.indexOf("second b"));
+        // batched, not performed as separate build steps
+        assertEquals(misses, statistics.getMisses());
+    }
+
+    @Test
+    public void stopsAtFirstFailure() throws Exception {
+        script("failing", "exit 3\n");
+        script("never", "echo never executed\n");
+        FreeStyleProject project = project(new ScriptBuildStep("failing", new String[0]), new ScriptBuildStep("never", new String[0]));
+
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        j.assertLogContains("script 'failing' returned exit code 3", build);
+        j.assertLogNotContains("never executed", build);
+    }
+
+    @Test
+    public void missingScript() throws Exception {
+        script("existing", "echo existing\n");
+        FreeStyleProject project = project(new ScriptBuildStep("existing", new String[0]), new ScriptBuildStep("missing", new String[0]));
+
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+        j.assertLogContains(Messages.config_does_not_exist("missing"), build);
+        j.assertLogNotContains("existing", build);
+    }
+
+    @Test
+    public void nonPlainScriptFallsBack() throws Exception {
+        script("piped", "echo piped\n");
+        script("plain", "echo nonPlainScriptFallsBack\n");
+        ScriptBuildStep piped = new ScriptBuildStep("piped", new String[0]);
+        piped.setStdin(true);
+        FreeStyleProject project = project(piped, new ScriptBuildStep("plain", new String[0]));
+
+        ScriptCache.Statistics statistics = ScriptCache.getStatistics("");
+        long misses = statistics.getMisses();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        j.assertLogContains("piped", build);
+        j.assertLogContains("nonPlainScriptFallsBack", build);
+        // the plain script got performed as its own build step, through the script cache
+        assertEquals(misses + 1, statistics.getMisses());
+    }
+
+    @Test
+    public void decoratedLauncherFallsBack() throws Exception {
+        script("decorated-first", "echo decorated first\n");
+        script("decorated-second", "echo decorated second\n");
+        FreeStyleProject project = project(new ScriptBuildStep("decorated-first", new String[0]), new ScriptBuildStep("decorated-second", new String[0]));
+        CountingWrapper wrapper = new CountingWrapper();
+        project.getBuildWrappersList().add(wrapper);
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        j.assertLogContains("decorated first", build);
+        j.assertLogContains("decorated second", build);
+        // both scripts got launched through the decorated launcher
+        assertEquals(2, CountingWrapper.LAUNCHES.get());
+    }
+
+    private static void script(String id, String content) {
+        GlobalConfigFiles.get().save(new ScriptConfig(id, id, "", content, Collections.<ScriptConfig.Arg>emptyList()));
+    }
+
+    private FreeStyleProject project(ScriptBuildStep... scripts) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new ScriptSequenceBuildStep(Arrays.asList(scripts)));
+        return project;
+    }
+
+    /**
+     * Decorates the launcher, counting the processes launched through it.
+     */
+    public static final class CountingWrapper extends BuildWrapper {
+        static final AtomicInteger LAUNCHES = new AtomicInteger();
+
+        @Override
+        public Launcher decorateLauncher(AbstractBuild build, Launcher launcher, BuildListener listener) {
+            return new Launcher.DecoratedLauncher(launcher) {
+                @Override
+                public Proc launch(ProcStarter starter) throws IOException {
+                    LAUNCHES.incrementAndGet();
+                    return super.launch(starter);
+                }
+            };
+        }
+
+        @Override
+        public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) {
+            return new Environment() {
+            };
+        }
+
+        @TestExtension("decoratedLauncherFallsBack")
+        public static final class DescriptorImpl extends BuildWrapperDescriptor {
+            @Override
+            public boolean isApplicable(AbstractProject<?, ?> item) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import hudson.model.Items;
+import hudson.model.listeners.ItemListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptUsageIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void indexesUpdatedAndCopiedJobs() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("p");
+        project.getBuildersList().add(new ScriptBuildStep("first", new String[0]));
+        project.getBuildersList().add(new ScriptSequenceBuildStep(Arrays.asList(new ScriptBuildStep("second", new String[0]))));
+        ItemListener.fireOnUpdated(project);
+        assertEquals(Collections.singletonList("p"), ScriptUsageIndex.getJobs("first"));
+        assertEquals(Collections.singletonList("p"), ScriptUsageIndex.getJobs("second"));
+
+        j.jenkins.copy(project, "copy");
+        assertEquals(Arrays.asList("copy", "p"), ScriptUsageIndex.getJobs("first"));
+
+        project.getBuildersList().remove(ScriptSequenceBuildStep.class);
+        ItemListener.fireOnUpdated(project);
+        assertEquals(Collections.singletonList("copy"), ScriptUsageIndex.getJobs("second"));
+    }
+
+    @Test
+    public void followsRenamedAndMovedJobs() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("before");
+        project.getBuildersList().add(new ScriptBuildStep("renamed", new String[0]));
+        ItemListener.fireOnUpdated(project);
+
+        project.renameTo("after");
+        assertEquals(Collections.singletonList("after"), ScriptUsageIndex.getJobs("renamed"));
+
+        Folder folder = j.jenkins.createProject(Folder.class, "folder");
+        Items.move(project, folder);
+        assertEquals(Collections.singletonList("folder/after"), ScriptUsageIndex.getJobs("renamed"));
+
+        // the jobs within a moved folder move with it
+        Folder target = j.jenkins.createProject(Folder.class, "target");
+        Items.move(folder, target);
+        assertEquals(Collections.singletonList("target/folder/after"), ScriptUsageIndex.getJobs("renamed"));
+    }
+
+    @Test
+    public void dropsDeletedJobs() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("deleted");
+        project.getBuildersList().add(new ScriptBuildStep("dropped", new String[0]));
+        ItemListener.fireOnUpdated(project);
+        Folder folder = j.jenkins.createProject(Folder.class, "folder");
+        FreeStyleProject nested = folder.createProject(FreeStyleProject.class, "nested");
+        nested.getBuildersList().add(new ScriptBuildStep("dropped", new String[0]));
+        ItemListener.fireOnUpdated(nested);
+        assertEquals(Arrays.asList("deleted", "folder/nested"), ScriptUsageIndex.getJobs("dropped"));
+
+        project.delete();
+        assertEquals(Collections.singletonList("folder/nested"), ScriptUsageIndex.getJobs("dropped"));
+
+        // the jobs within a folder are gone with it
+        folder.delete();
+        assertTrue(ScriptUsageIndex.getJobs("dropped").isEmpty());
+        assertFalse(ScriptUsageIndex.getAll().containsKey("dropped"));
+    }
+}